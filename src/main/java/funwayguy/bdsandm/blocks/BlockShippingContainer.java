@@ -88,6 +88,21 @@ public class BlockShippingContainer extends Block implements ITileEntityProvider
         }
     }
     
+    @Override
+    @SuppressWarnings("deprecation")
+    public void neighborChanged(IBlockState state, World worldIn, BlockPos pos, Block blockIn, BlockPos fromPos)
+    {
+        TileEntity tile = worldIn.getTileEntity(pos);
+        if(tile instanceof TileEntityShipping) ((TileEntityShipping)tile).onNeighbourChanged();
+    }
+    
+    @Override
+    public void onNeighborChange(IBlockAccess world, BlockPos pos, BlockPos neighbor)
+    {
+        TileEntity tile = world.getTileEntity(pos);
+        if(tile instanceof TileEntityShipping) ((TileEntityShipping)tile).onNeighbourChanged();
+    }
+    
 	@Override
     public boolean onBlockActivated(World world, BlockPos pos, IBlockState state, EntityPlayer player, EnumHand hand, EnumFacing heldItem, float side, float hitX, float hitY)
     {
@@ -119,53 +134,13 @@ public class BlockShippingContainer extends Block implements ITileEntityProvider
         }
         
         int myIdx = state.getValue(PROXY_IDX);
-        BlockPos startPos;
-        
-        switch(myIdx)
-        {
-            case 4:
-                startPos = pos.add(-1, 0, 0);
-                break;
-            case 5:
-                startPos = pos.add(-1, 0, -1);
-                break;
-            case 1:
-                startPos = pos.add(0, 0, -1);
-                break;
-            case 0:
-                startPos = pos;
-                break;
-            case 6:
-                startPos = pos.add(-1, -1, 0);
-                break;
-            case 7:
-                startPos = pos.add(-1, -1, -1);
-                break;
-            case 3:
-                startPos = pos.add(0, -1, -1);
-                break;
-            case 2:
-                startPos = pos.add(0, -1, 0);
-                break;
-            default:
-                startPos = pos;
-        }
+        BlockPos startPos = TileEntityShipping.getMasterPos(pos, myIdx);
         
-        for(int i = 0; i < 2; i++)
+        for(int idx = 0; idx < 8; idx++)
         {
-            for(int j = 0; j < 2; j++)
+            if(idx != myIdx)
             {
-                for(int k = 0; k < 2; k++)
-                {
-                    int idx = (i * 4) + (j * 2) + k;
-                    
-                    if(idx == myIdx)
-                    {
-                        continue;
-                    }
-                    
-                    worldIn.setBlockToAir(startPos.add(i, j, k));
-                }
+                worldIn.setBlockToAir(TileEntityShipping.getBlockPos(startPos, idx));
             }
         }
         
@@ -179,38 +154,13 @@ public class BlockShippingContainer extends Block implements ITileEntityProvider
     {
         boolean turnIt = placer.getHorizontalFacing().getHorizontalIndex() % 2 == 0; // This really only matters index 0 and 4 but we set them all for consistency
         int myIdx = new int[]{4, 5, 1, 0}[placer.getHorizontalFacing().getHorizontalIndex()];
-        BlockPos startPos;
-        
-        switch(myIdx)
-        {
-            case 4:
-                startPos = pos.add(-1, 0, 0);
-                break;
-            case 5:
-                startPos = pos.add(-1, 0, -1);
-                break;
-            case 1:
-                startPos = pos.add(0, 0, -1);
-                break;
-            default:
-                startPos = pos;
-        }
+        BlockPos startPos = TileEntityShipping.getMasterPos(pos, myIdx);
         
-        for(int i = 0; i < 2; i++)
+        for(int idx = 0; idx < 8; idx++)
         {
-            for(int j = 0; j < 2; j++)
+            if(idx != myIdx)
             {
-                for(int k = 0; k < 2; k++)
-                {
-                    int idx = (i * 4) + (j * 2) + k;
-                    
-                    if(idx == myIdx)
-                    {
-                        continue;
-                    }
-                    
-                    worldIn.setBlockState(startPos.add(i, j, k), this.getDefaultState().withProperty(PROXY_IDX, idx).withProperty(TURNED, turnIt));
-                }
+                worldIn.setBlockState(TileEntityShipping.getBlockPos(startPos, idx), this.getDefaultState().withProperty(PROXY_IDX, idx).withProperty(TURNED, turnIt));
             }
         }
     }
@@ -0,0 +1,135 @@
+package funwayguy.bdsandm.blocks.tiles;
+
+import funwayguy.bdsandm.inventory.capability.IBarrel;
+import funwayguy.bdsandm.inventory.capability.ICrate;
+import funwayguy.bdsandm.inventory.capability.IStackContainer;
+import funwayguy.bdsandm.core.BDSM;
+import funwayguy.bdsandm.network.ChunkWatchers;
+import funwayguy.bdsandm.network.PacketCrateCount;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.item.ItemStack;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraftforge.fluids.FluidStack;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Server side snapshot of the container state last sent to clients.
+ * Used to decide whether a change can go out as a count-only packet or needs the full tile NBT.
+ */
+class ContainerSyncState
+{
+    static final int NONE = 0;
+    static final int COUNT = 1;
+    static final int FULL = 2;
+    
+    private boolean hasSent = false;
+    
+    // Reference items are replaced rather than modified when they change so identity is enough here
+    private ItemStack refItem = ItemStack.EMPTY;
+    private FluidStack refFluid = null;
+    private int stackCap;
+    private int upgradeCap;
+    private boolean oreDict;
+    private boolean locked;
+    private boolean overflow;
+    private int[] colors;
+    private int count;
+    
+    // Watchers that were outside the label range when the count last changed
+    private final Set<EntityPlayerMP> staleWatchers = Collections.newSetFromMap(new WeakHashMap<>());
+    
+    /**
+     * Compares the container against the last sent state and records the new one.
+     * @return {@link #FULL} if anything besides the count differs, {@link #COUNT} if only the count does, {@link #NONE} otherwise
+     */
+    int update(IStackContainer container, int curCount)
+    {
+        ItemStack curItem = container instanceof ICrate ? ((ICrate)container).getRefItem() : ItemStack.EMPTY;
+        FluidStack curFluid = container instanceof IBarrel ? ((IBarrel)container).getRefFluid() : null;
+        boolean curOre = container instanceof ICrate && ((ICrate)container).isOreDict();
+        
+        if(hasSent && refItem == curItem && refFluid == curFluid && stackCap == container.getStackCap() && upgradeCap == container.getUpgradeCap() && oreDict == curOre && locked == container.isLocked() && overflow == container.voidOverflow() && Arrays.equals(colors, container.getColors()))
+        {
+            if(count == curCount)
+            {
+                return NONE;
+            }
+            
+            count = curCount;
+            return COUNT;
+        }
+        
+        hasSent = true;
+        refItem = curItem;
+        refFluid = curFluid;
+        stackCap = container.getStackCap();
+        upgradeCap = container.getUpgradeCap();
+        oreDict = curOre;
+        locked = container.isLocked();
+        overflow = container.voidOverflow();
+        colors = container.getColors().clone();
+        count = curCount;
+        return FULL;
+    }
+    
+    void sendFull(TileEntity tile)
+    {
+        ChunkWatchers.sendToWatchers(tile, tile.getUpdatePacket());
+        staleWatchers.clear();
+    }
+    
+    /**
+     * Sends the last recorded count to the watchers within label range.
+     * @return true if some watchers were skipped and need catching up later
+     */
+    boolean sendCount(TileEntity tile)
+    {
+        PacketCrateCount message = new PacketCrateCount(tile.getPos(), count);
+        
+        for(EntityPlayerMP player : ChunkWatchers.getWatchers(tile))
+        {
+            if(ChunkWatchers.isInLabelRange(tile, player))
+            {
+                BDSM.INSTANCE.network.sendTo(message, player);
+                staleWatchers.remove(player);
+            } else
+            {
+                staleWatchers.add(player);
+            }
+        }
+        
+        return !staleWatchers.isEmpty();
+    }
+    
+    /**
+     * Sends the count to skipped watchers that have since come into label range and forgets the ones no longer watching.
+     * @return true if some are still waiting
+     */
+    boolean sendStale(TileEntity tile)
+    {
+        PacketCrateCount message = null;
+        Iterator<EntityPlayerMP> iter = staleWatchers.iterator();
+        
+        while(iter.hasNext())
+        {
+            EntityPlayerMP player = iter.next();
+            
+            if(player.hasDisconnected() || !ChunkWatchers.isWatching(tile, player))
+            {
+                iter.remove();
+            } else if(ChunkWatchers.isInLabelRange(tile, player))
+            {
+                if(message == null) message = new PacketCrateCount(tile.getPos(), count);
+                BDSM.INSTANCE.network.sendTo(message, player);
+                iter.remove();
+            }
+        }
+        
+        return !staleWatchers.isEmpty();
+    }
+}
@@ -0,0 +1,20 @@
+package funwayguy.bdsandm.blocks.tiles;
+
+/**
+ * A tickable tile that only needs to be in its world's ticking list some of the time.
+ * @see funwayguy.bdsandm.events.TickHandler#queueTickingCheck(net.minecraft.tileentity.TileEntity)
+ */
+public interface IConditionalTicking
+{
+    /**
+     * Whether update() currently has any work to do
+     */
+    boolean shouldTick();
+    
+    /**
+     * Whether the tile is currently in its world's ticking list. Only changed by the tick handler
+     */
+    boolean isTicking();
+    
+    void setTicking(boolean ticking);
+}
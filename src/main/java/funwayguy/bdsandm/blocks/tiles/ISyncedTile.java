@@ -0,0 +1,23 @@
+package funwayguy.bdsandm.blocks.tiles;
+
+/**
+ * A tile that batches its client sync and comparator updates into a single flush at the end of the server tick.
+ * @see funwayguy.bdsandm.events.TickHandler#queueSync(net.minecraft.tileentity.TileEntity)
+ */
+public interface ISyncedTile
+{
+    void flushSync();
+    
+    /**
+     * Client side. Applies a count-only update sent in place of the full update packet.
+     * @see funwayguy.bdsandm.network.PacketCrateCount
+     */
+    void readSyncedCount(int count);
+    
+    /**
+     * Catches up watchers that were outside the label range when the count changed.
+     * @return true if some are still out of range
+     * @see funwayguy.bdsandm.core.BdsmConfig#labelSyncRange
+     */
+    boolean flushStaleWatchers();
+}
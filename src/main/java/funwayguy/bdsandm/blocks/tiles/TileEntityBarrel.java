@@ -1,5 +1,6 @@
 package funwayguy.bdsandm.blocks.tiles;
 
+import funwayguy.bdsandm.events.TickHandler;
 import funwayguy.bdsandm.inventory.capability.BdsmCapabilies;
 import funwayguy.bdsandm.inventory.capability.CapabilityBarrel;
 import funwayguy.bdsandm.inventory.capability.ICrateCallback;
@@ -16,11 +17,14 @@ import net.minecraftforge.items.CapabilityItemHandler;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Arrays;
 
-public class TileEntityBarrel extends TileEntity implements ICrateCallback
+public class TileEntityBarrel extends TileEntity implements ICrateCallback, ISyncedTile
 {
     private final CapabilityBarrel barrelCap;
     
+    private final ContainerSyncState syncState = new ContainerSyncState();
+    
     private boolean creativeBreak = false;
     
     @SuppressWarnings("unused")
@@ -91,8 +95,35 @@ public class TileEntityBarrel extends TileEntity implements ICrateCallback
             return;
         }
         
+        TickHandler.queueSync(this);
+    }
+    
+    @Override
+    public void flushSync()
+    {
         this.markDirty();
-        if(world.getMinecraftServer() != null) world.getMinecraftServer().getPlayerList().sendToAllNearExcept(null, pos.getX(), pos.getY(), pos.getZ(), 128, world.provider.getDimension(), getUpdatePacket());
+        
+        switch(syncState.update(barrelCap, barrelCap.getSurvivalCount()))
+        {
+            case ContainerSyncState.FULL:
+                syncState.sendFull(this);
+                break;
+            case ContainerSyncState.COUNT:
+                if(syncState.sendCount(this)) TickHandler.queueStaleCheck(this);
+                break;
+        }
+    }
+    
+    @Override
+    public boolean flushStaleWatchers()
+    {
+        return syncState.sendStale(this);
+    }
+    
+    @Override
+    public void readSyncedCount(int count)
+    {
+        barrelCap.setClientCount(count);
     }
     
     @Nonnull
@@ -117,11 +148,21 @@ public class TileEntityBarrel extends TileEntity implements ICrateCallback
         barrelCap.deserializeNBT(nbt.getCompoundTag("barrelCap"));
     }
     
+    @Override
+    public void handleUpdateTag(@Nonnull NBTTagCompound tag)
+    {
+        super.readFromNBT(tag);
+        
+        barrelCap.readDisplayNBT(tag.getCompoundTag("barrelCap"));
+    }
+    
     @Override
     public void onDataPacket(NetworkManager net, SPacketUpdateTileEntity pkt)
     {
-    	this.readFromNBT(pkt.getNbtCompound());
-    	this.world.markBlockRangeForRenderUpdate(this.pos, this.pos);
+        // The count and item are drawn by the TESR. Only the colours are baked into the chunk
+        int[] oldColors = barrelCap.getColors().clone();
+        this.handleUpdateTag(pkt.getNbtCompound());
+        if(!Arrays.equals(oldColors, barrelCap.getColors())) this.world.markBlockRangeForRenderUpdate(this.pos, this.pos);
     }
     
     @Nonnull
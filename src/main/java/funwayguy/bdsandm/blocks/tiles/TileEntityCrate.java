@@ -1,5 +1,6 @@
 package funwayguy.bdsandm.blocks.tiles;
 
+import funwayguy.bdsandm.events.TickHandler;
 import funwayguy.bdsandm.inventory.capability.BdsmCapabilies;
 import funwayguy.bdsandm.inventory.capability.CapabilityCrate;
 import funwayguy.bdsandm.inventory.capability.ICrateCallback;
@@ -15,11 +16,14 @@ import net.minecraftforge.items.CapabilityItemHandler;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Arrays;
 
-public class TileEntityCrate extends TileEntity implements ICrateCallback
+public class TileEntityCrate extends TileEntity implements ICrateCallback, ISyncedTile
 {
     private final CapabilityCrate crateCap;
     
+    private final ContainerSyncState syncState = new ContainerSyncState();
+    
     private boolean creativeBreak = false;
     
     @SuppressWarnings("unused")
@@ -80,8 +84,35 @@ public class TileEntityCrate extends TileEntity implements ICrateCallback
     public void onCrateChanged()
     {
         if(world.isRemote) return;
+        TickHandler.queueSync(this);
+    }
+    
+    @Override
+    public void flushSync()
+    {
         this.markDirty();
-        if(world.getMinecraftServer() != null) world.getMinecraftServer().getPlayerList().sendToAllNearExcept(null, pos.getX(), pos.getY(), pos.getZ(), 128, world.provider.getDimension(), getUpdatePacket());
+        
+        switch(syncState.update(crateCap, crateCap.getSurvivalCount()))
+        {
+            case ContainerSyncState.FULL:
+                syncState.sendFull(this);
+                break;
+            case ContainerSyncState.COUNT:
+                if(syncState.sendCount(this)) TickHandler.queueStaleCheck(this);
+                break;
+        }
+    }
+    
+    @Override
+    public boolean flushStaleWatchers()
+    {
+        return syncState.sendStale(this);
+    }
+    
+    @Override
+    public void readSyncedCount(int count)
+    {
+        crateCap.setClientCount(count);
     }
     
     @Nonnull
@@ -106,11 +137,21 @@ public class TileEntityCrate extends TileEntity implements ICrateCallback
         crateCap.deserializeNBT(nbt.getCompoundTag("crateCap"));
     }
     
+    @Override
+    public void handleUpdateTag(@Nonnull NBTTagCompound tag)
+    {
+        super.readFromNBT(tag);
+        
+        crateCap.readDisplayNBT(tag.getCompoundTag("crateCap"));
+    }
+    
     @Override
     public void onDataPacket(NetworkManager net, SPacketUpdateTileEntity pkt)
     {
-    	this.readFromNBT(pkt.getNbtCompound());
-    	this.world.markBlockRangeForRenderUpdate(this.pos, this.pos);
+        // The count and item are drawn by the TESR. Only the colours are baked into the chunk
+        int[] oldColors = crateCap.getColors().clone();
+        this.handleUpdateTag(pkt.getNbtCompound());
+        if(!Arrays.equals(oldColors, crateCap.getColors())) this.world.markBlockRangeForRenderUpdate(this.pos, this.pos);
     }
     
     @Nonnull
@@ -1,7 +1,10 @@
 package funwayguy.bdsandm.blocks.tiles;
 
+import funwayguy.bdsandm.core.BdsmConfig;
+import funwayguy.bdsandm.events.TickHandler;
 import funwayguy.bdsandm.inventory.InventoryShipping;
 import funwayguy.bdsandm.inventory.capability.ShippingProxyWrapper;
+import funwayguy.bdsandm.network.ChunkWatchers;
 import net.minecraft.inventory.IInventory;
 import net.minecraft.inventory.IInventoryChangedListener;
 import net.minecraft.item.ItemStack;
@@ -24,19 +27,41 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Arrays;
 
-public class TileEntityShipping extends TileEntity implements IInventoryChangedListener, ITickable
+public class TileEntityShipping extends TileEntity implements IInventoryChangedListener, ITickable, IConditionalTicking
 {
     /**If this isn't zero the internal itemhandler will be effectively useless, even for GUIs.
      * If it is then we're directly manipulating this inventory. (DO NOT USE DIRECTLY)
      * Calling getCapability() will redirect to the proxy wrapper. (MACHINES)
      * Calling getHandlerForContainer() will redirect to the tile in charge. (GUI USE ONLY)*/
     private int proxyIdx;
-    private final InventoryShipping invo;
-    private final ShippingProxyWrapper proxyWrapper;
+    
+    // Only the master (index 0) owns these. They stay null on the other seven blocks
+    private InventoryShipping invo;
+    private ShippingProxyWrapper proxyWrapper;
+    private int[] colors;
+    
+    // Slaves only. Looked up again once the master tile is invalidated or unloaded
+    private TileEntityShipping master;
+    private boolean unloaded = false;
+    
+    // Master only. Energy receivers next to the 24 open faces, looked up again after a neighbour changes
+    private TileEntity[] receiverTiles;
+    private IEnergyStorage[] receivers;
+    private boolean receiversValid = false;
+    private int unresolvedFaces = 0; // Bit per face that was in an unloaded chunk when last looked up
+    
+    // Ticks to wait before trying again after the neighbours refused everything. Doubles up to MAX_BACKOFF while they stay full
+    private static final int MAX_BACKOFF = 100;
+    private int backoff = 0;
+    private int cooldown = 0;
+    
+    // Every tickable tile starts out in the world's ticking list. Slaves and masters without batteries are taken back out
+    private boolean ticking = true;
     
     private static final EnumFacing[][] openSides = new EnumFacing[8][3];
     
-    private int[] colors = new int[]{0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF};
+    // Position of each block relative to the master. The index bits are the x, y and z offsets in that order
+    private static final BlockPos[] blockOffsets = new BlockPos[8];
     
     @SuppressWarnings("unused")
     public TileEntityShipping()
@@ -47,86 +72,316 @@ public class TileEntityShipping extends TileEntity implements IInventoryChangedL
     public TileEntityShipping(int index)
     {
         this.proxyIdx = index & 7; // We need to cut off the turned value because it doesn't actually matter.
-        this.invo = new InventoryShipping(this);
-        this.proxyWrapper = new ShippingProxyWrapper(this, invo);
+    }
+    
+    public boolean isMaster()
+    {
+        return proxyIdx == 0;
+    }
+    
+    /**
+     * Sets up the inventory on first use. Tiles loaded from disk are constructed before their index is known so this can't happen in the constructor.
+     */
+    private void initMaster()
+    {
+        if(invo != null) return;
+        
+        invo = new InventoryShipping(this);
+        proxyWrapper = new ShippingProxyWrapper(this, invo);
+        colors = new int[]{0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF};
     }
     
     public int getColorCount()
     {
-        return colors.length;
+        return getColors().length;
     }
     
     public int[] getColors()
     {
+        if(!isMaster())
+        {
+            TileEntityShipping proxyTile = getProxyTile();
+            return proxyTile == null ? new int[0] : proxyTile.getColors();
+        }
+        
+        initMaster();
         return colors;
     }
     
     public void setColors(int[] c)
     {
+        if(!isMaster())
+        {
+            TileEntityShipping proxyTile = getProxyTile();
+            if(proxyTile != null) proxyTile.setColors(c);
+            return;
+        }
+        
+        initMaster();
+        
         for(int i = 0; i < c.length && i < colors.length; i++)
         {
             colors[i] = c[i];
         }
         
         this.markDirty();
-        if(world.getMinecraftServer() != null) world.getMinecraftServer().getPlayerList().sendToAllNearExcept(null, pos.getX(), pos.getY(), pos.getZ(), 128, world.provider.getDimension(), getUpdatePacket());
+        ChunkWatchers.sendToWatchers(this, getUpdatePacket());
     }
     
     @Nonnull
     @Override
     public NBTTagCompound getUpdateTag()
     {
-        return this.writeToNBT(new NBTTagCompound());
+        // Clients only draw the colours. The inventory is sent by the container once someone opens the GUI
+        NBTTagCompound tag = super.writeToNBT(new NBTTagCompound());
+        tag.setInteger("proxyIdx", proxyIdx);
+        
+        if(isMaster())
+        {
+            initMaster();
+            tag.setIntArray("objColors", colors);
+        }
+        
+        return tag;
     }
     
     @Nonnull
     @Override
     public SPacketUpdateTileEntity getUpdatePacket()
     {
-        return new SPacketUpdateTileEntity(pos, 0, this.writeToNBT(new NBTTagCompound()));
+        return new SPacketUpdateTileEntity(pos, 0, this.getUpdateTag());
+    }
+    
+    @Override
+    public void handleUpdateTag(@Nonnull NBTTagCompound tag)
+    {
+        super.readFromNBT(tag);
+        
+        this.proxyIdx = tag.getInteger("proxyIdx");
+        if(!isMaster()) return;
+        
+        initMaster();
+        this.colors = Arrays.copyOf(tag.getIntArray("objColors"), colors.length);
     }
     
     @Override
     public void onDataPacket(NetworkManager net, SPacketUpdateTileEntity pkt)
     {
-    	this.readFromNBT(pkt.getNbtCompound());
-    	this.world.markBlockRangeForRenderUpdate(this.pos, this.pos);
+        int[] oldColors = colors;
+        this.handleUpdateTag(pkt.getNbtCompound());
+        
+        if(isMaster() && !Arrays.equals(oldColors, colors))
+        {
+            // Every block in the container is tinted with the master's colours
+            this.world.markBlockRangeForRenderUpdate(this.pos, this.pos.add(1, 1, 1));
+        }
     }
     
     @Override
     public void update()
     {
-        if(world.isRemote) return;
-        
-        IEnergyStorage myEnergy = this.getCapability(CapabilityEnergy.ENERGY, null);
+        // Only the master should still be ticking but this can run once before the tick handler catches up
+        if(world.isRemote || !isMaster() || proxyWrapper == null) return;
         
-        if(myEnergy == null || myEnergy.getEnergyStored() <= 0 || !myEnergy.canExtract()) return;
+        if(cooldown > 0)
+        {
+            cooldown--;
+            return;
+        }
         
-        int maxOffer = myEnergy.extractEnergy(Integer.MAX_VALUE, true);
-        if(maxOffer <= 0) return;
         int sent = 0;
+        boolean hasEnergy = proxyWrapper.extractEnergy(Integer.MAX_VALUE, true) > 0; // Asked of the batteries rather than the running total
         
-        for(EnumFacing side : openSides[proxyIdx])
+        if(hasEnergy)
         {
-            BlockPos offPos = pos.offset(side);
-            TileEntity tile = world.getTileEntity(offPos);
+            if(!receiversValid)
+            {
+                resolveReceivers();
+            } else if(unresolvedFaces != 0)
+            {
+                retryUnresolvedFaces();
+            }
             
-            if(tile != null && tile.hasCapability(CapabilityEnergy.ENERGY, side.getOpposite()))
+            // Each block makes its own offer, the same throughput as when all 8 of them ticked
+            for(int idx = 0; idx < 8; idx++)
             {
-                IEnergyStorage target = tile.getCapability(CapabilityEnergy.ENERGY, side.getOpposite());
-                if(target == null || !target.canReceive()) continue;
-                
-                sent += target.receiveEnergy(maxOffer - sent, false);
+                sent += pushEnergy(idx);
+            }
+        }
+        
+        if(sent > 0)
+        {
+            backoff = 0;
+        } else if(hasEnergy)
+        {
+            // Only the neighbours refusing counts. With nothing to offer it just checks again next tick
+            backoff = backoff <= 0 ? 1 : Math.min(backoff * 2, MAX_BACKOFF);
+            cooldown = backoff;
+            
+            // A neighbour can gain an energy capability without any block update. Look again every so often while nothing is sent
+            if(backoff >= MAX_BACKOFF) receiversValid = false;
+        }
+    }
+    
+    /**
+     * Offers the stored energy to the receivers next to one of the 8 blocks. The energy is pulled out before it's handed over
+     * so neighbours can never be given more than the batteries actually let go of.
+     * @return how much was sent
+     */
+    private int pushEnergy(int idx)
+    {
+        IEnergyStorage myEnergy = proxyWrapper;
+        int maxOffer = -1;
+        int accepted = 0;
+        
+        for(int i = idx * 3; i < idx * 3 + 3; i++)
+        {
+            IEnergyStorage target = receivers[i];
+            if(target == null) continue;
+            
+            TileEntity tile = receiverTiles[i];
+            
+            if(tile.isInvalid() || !world.isBlockLoaded(tile.getPos()))
+            {
+                receiversValid = false; // Dropped for now. Looked up again next time
+                receivers[i] = null;
+                continue;
             }
+            
+            if(maxOffer < 0) maxOffer = myEnergy.extractEnergy(Integer.MAX_VALUE, true); // Only asked once there's someone to give it to
+            if(accepted >= maxOffer) break;
+            
+            if(target.canReceive()) accepted += target.receiveEnergy(maxOffer - accepted, true);
+        }
+        
+        int pulled = accepted <= 0 ? 0 : myEnergy.extractEnergy(accepted, false);
+        int sent = 0;
+        
+        for(int i = idx * 3; i < idx * 3 + 3 && sent < pulled; i++)
+        {
+            IEnergyStorage target = receivers[i];
+            if(target != null && target.canReceive()) sent += target.receiveEnergy(pulled - sent, false);
         }
         
-        myEnergy.extractEnergy(sent, false);
+        // Only happens if a neighbour takes less than it simulated. Put back as much as the batteries will take
+        if(sent < pulled) myEnergy.receiveEnergy(pulled - sent, false);
+        return sent;
+    }
+    
+    private void resolveReceivers()
+    {
+        receiverTiles = new TileEntity[24];
+        receivers = new IEnergyStorage[24];
+        unresolvedFaces = 0;
+        
+        // Every open face of all 8 blocks
+        for(int i = 0; i < 24; i++)
+        {
+            if(!resolveFace(i)) unresolvedFaces |= 1 << i;
+        }
+        
+        receiversValid = true;
+    }
+    
+    /**
+     * Retries the faces that were in unloaded chunks. Loading a chunk doesn't cause a neighbour update
+     */
+    private void retryUnresolvedFaces()
+    {
+        for(int i = 0; i < 24; i++)
+        {
+            if((unresolvedFaces & (1 << i)) != 0 && resolveFace(i)) unresolvedFaces &= ~(1 << i);
+        }
+    }
+    
+    /**
+     * Looks up the receiver on one open face. Index is block * 3 + side
+     * @return false if the face is in an unloaded chunk
+     */
+    private boolean resolveFace(int i)
+    {
+        EnumFacing side = openSides[i / 3][i % 3];
+        BlockPos offPos = getBlockPos(pos, i / 3).offset(side);
+        if(!world.isBlockLoaded(offPos)) return false;
+        
+        TileEntity tile = world.getTileEntity(offPos);
+        IEnergyStorage target = tile == null || !tile.hasCapability(CapabilityEnergy.ENERGY, side.getOpposite()) ? null : tile.getCapability(CapabilityEnergy.ENERGY, side.getOpposite());
+        
+        receiverTiles[i] = target == null ? null : tile;
+        receivers[i] = target;
+        return true;
+    }
+    
+    /**
+     * Called when a block next to any part of the container changes. Drops the cached energy receivers and retries straight away.
+     */
+    public void onNeighbourChanged()
+    {
+        TileEntityShipping proxyTile = getProxyTile();
+        if(proxyTile == null) return;
+        
+        proxyTile.receiversValid = false;
+        proxyTile.backoff = 0;
+        proxyTile.cooldown = 0;
+    }
+    
+    /**
+     * Called when the batteries change or take in energy so a waiting container offers it straight away
+     */
+    public void resetEnergyBackoff()
+    {
+        backoff = 0;
+        cooldown = 0;
+    }
+    
+    @Override
+    public boolean shouldTick()
+    {
+        return !world.isRemote && !unloaded && isMaster() && proxyWrapper != null && proxyWrapper.hasEnergyStorage();
+    }
+    
+    @Override
+    public boolean isTicking()
+    {
+        return ticking;
+    }
+    
+    @Override
+    public void setTicking(boolean ticking)
+    {
+        this.ticking = ticking;
+    }
+    
+    @Override
+    public void onLoad()
+    {
+        TickHandler.queueTickingCheck(this);
+    }
+    
+    @Override
+    public void invalidate()
+    {
+        super.invalidate();
+        master = null;
+    }
+    
+    @Override
+    public void onChunkUnload()
+    {
+        unloaded = true;
+        receiverTiles = null;
+        receivers = null;
+        receiversValid = false;
     }
     
     @Override
     public void onInventoryChanged(@Nonnull IInventory invBasic)
     {
         this.markDirty();
+        
+        // Batteries may have been added, removed or charged
+        resetEnergyBackoff();
+        if(world != null && isMaster()) TickHandler.queueTickingCheck(this);
     }
     
     @Override
@@ -145,23 +400,44 @@ public class TileEntityShipping extends TileEntity implements IInventoryChangedL
         
         if(capability == CapabilityItemHandler.ITEM_HANDLER_CAPABILITY)
         {
-            return CapabilityItemHandler.ITEM_HANDLER_CAPABILITY.cast(proxyTile.proxyWrapper);
+            proxyTile.initMaster();
+            return CapabilityItemHandler.ITEM_HANDLER_CAPABILITY.cast(BdsmConfig.aggregateShipping ? proxyTile.proxyWrapper.getAggregateView() : proxyTile.proxyWrapper);
         } else if(capability == CapabilityFluidHandler.FLUID_HANDLER_CAPABILITY)
         {
+            proxyTile.initMaster();
             return CapabilityFluidHandler.FLUID_HANDLER_CAPABILITY.cast(proxyTile.proxyWrapper);
         } else if(capability == CapabilityEnergy.ENERGY)
         {
+            proxyTile.initMaster();
             return CapabilityEnergy.ENERGY.cast(proxyTile.proxyWrapper);
         }
         
         return null;
     }
     
+    /**
+     * Bulk insert for automation. Routes the stack straight to the nested crate holding it rather than trying every slot.
+     * Anything inserting into the first slot of the item handler capability goes through here too
+     * @see ShippingProxyWrapper#insertAnywhere(ItemStack, boolean)
+     */
+    @Nonnull
+    public ItemStack insertAnywhere(@Nonnull ItemStack stack, boolean simulate)
+    {
+        TileEntityShipping proxyTile = getProxyTile();
+        if(proxyTile == null) return stack;
+        
+        proxyTile.initMaster();
+        return proxyTile.proxyWrapper.insertAnywhere(stack, simulate);
+    }
+    
     @Nullable
     public InventoryShipping getContainerInvo()
     {
         TileEntityShipping proxyTile = getProxyTile();
-        return proxyTile == null ? null : proxyTile.invo;
+        if(proxyTile == null) return null;
+        
+        proxyTile.initMaster();
+        return proxyTile.invo;
     }
     
     @Nonnull
@@ -169,23 +445,23 @@ public class TileEntityShipping extends TileEntity implements IInventoryChangedL
     public NBTTagCompound writeToNBT(NBTTagCompound tag)
     {
         tag.setInteger("proxyIdx", proxyIdx);
+        
+        // Slaves only need their index. Everything else is read from the master
+        if(!isMaster())
+        {
+            return super.writeToNBT(tag);
+        }
+        
+        initMaster();
         tag.setIntArray("objColors", colors);
-    
+        
         NBTTagList list = new NBTTagList();
         
         for(int i = 0; i < invo.getSizeInventory(); i++)
         {
-            ItemStack stack = invo.getStackInSlot(i);
-            
-            if(stack.isEmpty())
-            {
-                continue;
-            }
-            
-            NBTTagCompound itemTag = new NBTTagCompound();
-            itemTag.setByte("slot", (byte)i);
-            itemTag.setTag("item", stack.writeToNBT(new NBTTagCompound()));
-            list.appendTag(itemTag);
+            // Unchanged slots reuse the compound from the last save
+            NBTTagCompound itemTag = invo.getSlotTag(i);
+            if(itemTag != null) list.appendTag(itemTag);
         }
         
         tag.setTag("invo", list);
@@ -199,6 +475,14 @@ public class TileEntityShipping extends TileEntity implements IInventoryChangedL
         super.readFromNBT(tag);
         
         this.proxyIdx = tag.getInteger("proxyIdx");
+        
+        // Older versions saved an empty inventory on every slave. It's ignored
+        if(!isMaster())
+        {
+            return;
+        }
+        
+        initMaster();
         this.colors = Arrays.copyOf(tag.getIntArray("objColors"), colors.length);
         
         invo.clear();
@@ -220,46 +504,33 @@ public class TileEntityShipping extends TileEntity implements IInventoryChangedL
     @Nullable
     public TileEntityShipping getProxyTile()
     {
-        TileEntityShipping proxyTile = this;
-        
-        if(proxyIdx != 0)
+        if(proxyIdx == 0)
         {
-            BlockPos startPos;
-    
-            switch(proxyIdx)
-            {
-                case 4:
-                    startPos = pos.add(-1, 0, 0);
-                    break;
-                case 5:
-                    startPos = pos.add(-1, 0, -1);
-                    break;
-                case 1:
-                    startPos = pos.add(0, 0, -1);
-                    break;
-                case 6:
-                    startPos = pos.add(-1, -1, 0);
-                    break;
-                case 7:
-                    startPos = pos.add(-1, -1, -1);
-                    break;
-                case 3:
-                    startPos = pos.add(0, -1, -1);
-                    break;
-                case 2:
-                    startPos = pos.add(0, -1, 0);
-                    break;
-                default:
-                    startPos = pos;
-            }
-            
-            if(!world.isBlockLoaded(startPos)) return null;
-            TileEntity tile = world.getTileEntity(startPos);
-            if(!(tile instanceof TileEntityShipping)) return null;
-            proxyTile = (TileEntityShipping)tile;
+            return this;
+        } else if(master != null && !master.isInvalid() && !master.unloaded)
+        {
+            return master;
         }
         
-        return proxyTile;
+        master = null;
+        BlockPos startPos = getMasterPos(pos, proxyIdx);
+        
+        if(!world.isBlockLoaded(startPos)) return null;
+        TileEntity tile = world.getTileEntity(startPos);
+        if(!(tile instanceof TileEntityShipping) || !((TileEntityShipping)tile).isMaster()) return null;
+        
+        master = (TileEntityShipping)tile;
+        return master;
+    }
+    
+    public static BlockPos getMasterPos(BlockPos pos, int index)
+    {
+        return pos.subtract(blockOffsets[index & 7]);
+    }
+    
+    public static BlockPos getBlockPos(BlockPos masterPos, int index)
+    {
+        return masterPos.add(blockOffsets[index & 7]);
     }
     
     static
@@ -268,6 +539,8 @@ public class TileEntityShipping extends TileEntity implements IInventoryChangedL
         
         for(int i = 0; i < 8; i++)
         {
+            blockOffsets[i] = new BlockPos(i >> 2, (i >> 1) & 1, i & 1);
+            
             if(i == 0 || i == 1 || i == 4 || i == 5)
             {
                 openSides[i][0] = EnumFacing.DOWN;
@@ -1,5 +1,7 @@
 package funwayguy.bdsandm.core;
 
+import funwayguy.bdsandm.utils.OreDictCache;
+import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.ResourceLocation;
 import net.minecraftforge.common.config.Configuration;
@@ -11,19 +13,27 @@ import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import javax.annotation.Nonnull;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 @EventBusSubscriber
 public class BdsmConfig
 {
-    private static final List<BlacklistEntry> blacklist = new ArrayList<>();
-    private static final List<String> fluidBlacklist = new ArrayList<>();
-    
     public static boolean multiPurposeBarrel = true;
-    public static final List<String> oreDictBlacklist = new ArrayList<>();
     public static boolean altControls = false;
     public static int dClickDelay = 5;
+    public static int labelSyncRange = 0;
+    public static boolean aggregateShipping = false;
+    public static boolean balancedShippingEnergy = false;
     
     @SubscribeEvent
     public static void onConfigReload(ConfigChangedEvent event)
@@ -59,9 +69,12 @@ public class BdsmConfig
         altControls = config.getBoolean("Alternate Controls", Configuration.CATEGORY_CLIENT, false, "Use the old sneak method to extract items (may interfere with block harvesting)");
         dClickDelay = config.getInt("Double Click Delay", Configuration.CATEGORY_CLIENT, 5, 1, 20, "Maximum time in ticks between mouse clicks to be counted as a double click");
         
+        labelSyncRange = config.getInt("Label Sync Range", Configuration.CATEGORY_GENERAL, 0, 0, 512, "Only send crate and barrel count updates to players within this many blocks. Others catch up once they come closer. 0 sends to every player tracking the chunk");
+        aggregateShipping = config.getBoolean("Aggregate Shipping Inventories", Configuration.CATEGORY_GENERAL, false, "Shipping containers show automation one slot per item stored across their crates and barrels instead of every nested slot");
+        balancedShippingEnergy = config.getBoolean("Balanced Shipping Energy", Configuration.CATEGORY_GENERAL, false, "Spread energy going in and out of shipping containers across all their batteries instead of filling and draining them one at a time");
         multiPurposeBarrel = config.getBoolean("Multi-Purpose Barrels", Configuration.CATEGORY_GENERAL, true, "Allows items to be placed in barrels. Disable to only permit fluids");
         
-        blacklist.clear();
+        Map<ResourceLocation, MetaFilter> itemFilters = new HashMap<>();
         for(String s : config.getStringList("Item Blacklist", Configuration.CATEGORY_GENERAL, new String[]{} , "Blacklist these items from being stored in barrels and crates"))
         {
             String[] split = s.split(":");
@@ -70,10 +83,11 @@ public class BdsmConfig
             {
                 if(split.length == 2)
                 {
-                    blacklist.add(new BlacklistEntry(new ResourceLocation(split[0], split[1])));
+                    itemFilters.computeIfAbsent(new ResourceLocation(split[0], split[1]), key -> new MetaFilter()).add(-1);
                 } else if(split.length == 3)
                 {
-                    blacklist.add(new BlacklistEntry(new ResourceLocation(split[0], split[1]), Integer.parseInt(split[2])));
+                    int meta = Integer.parseInt(split[2]);
+                    itemFilters.computeIfAbsent(new ResourceLocation(split[0], split[1]), key -> new MetaFilter()).add(meta);
                 }
             } catch(Exception e)
             {
@@ -81,18 +95,55 @@ public class BdsmConfig
             }
         }
         
-        fluidBlacklist.clear();
-        Collections.addAll(fluidBlacklist, config.getStringList("Fluid Blacklist", Configuration.CATEGORY_GENERAL, new String[]{} , "Blacklist these fluids from being stored in barrels"));
+        Set<String> fluidNames = new HashSet<>();
+        Collections.addAll(fluidNames, config.getStringList("Fluid Blacklist", Configuration.CATEGORY_GENERAL, new String[]{} , "Blacklist these fluids from being stored in barrels"));
         
-        oreDictBlacklist.clear();
-        Collections.addAll(oreDictBlacklist, config.getStringList("Ore Dict Blacklist", Configuration.CATEGORY_GENERAL, new String[]{}, "Blacklists ore dictionary conversions (REGEX)"));
+        List<Pattern> oreFilters = new ArrayList<>();
+        for(String s : config.getStringList("Ore Dict Blacklist", Configuration.CATEGORY_GENERAL, new String[]{}, "Blacklists ore dictionary conversions (REGEX)"))
+        {
+            try
+            {
+                oreFilters.add(Pattern.compile(s));
+            } catch(PatternSyntaxException e)
+            {
+                BDSM.logger.error("An error occured while parsing ore dictionary blacklist entry", e);
+            }
+        }
+        
+        // Swapped in whole so a reload never exposes a half built blacklist
+        compiled = new CompiledBlacklist(itemFilters, fluidNames, oreFilters);
+        OreDictCache.clear();
         
         config.save();
     }
     
     public static boolean isBlacklisted(FluidStack fluid)
     {
-        return fluid != null && fluidBlacklist.contains(fluid.getFluid().getName());
+        return fluid != null && compiled.fluids.contains(fluid.getFluid().getName());
+    }
+    
+    public static boolean isOreBlacklisted(String oreName)
+    {
+        CompiledBlacklist bl = compiled;
+        Boolean result = bl.oreResults.get(oreName);
+        
+        if(result == null)
+        {
+            result = false;
+            
+            for(Pattern pattern : bl.ores)
+            {
+                if(pattern.matcher(oreName).matches())
+                {
+                    result = true;
+                    break;
+                }
+            }
+            
+            bl.oreResults.put(oreName, result);
+        }
+        
+        return result;
     }
     
     public static boolean isBlacklisted(ItemStack stack)
@@ -102,31 +153,65 @@ public class BdsmConfig
             return false;
         }
         
-        for(BlacklistEntry entry : blacklist)
+        MetaFilter filter = compiled.getFilter(stack.getItem());
+        return filter != MetaFilter.NONE && filter.matches(stack.getItemDamage());
+    }
+    
+    private static volatile CompiledBlacklist compiled = new CompiledBlacklist(Collections.emptyMap(), Collections.emptySet(), Collections.emptyList());
+    
+    private static class CompiledBlacklist
+    {
+        private final Map<ResourceLocation, MetaFilter> itemsByName;
+        // Items are resolved by name the first time they're checked since the config loads before most registries are filled
+        private final Map<Item, MetaFilter> items = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final Set<String> fluids;
+        private final List<Pattern> ores;
+        private final Map<String, Boolean> oreResults = new ConcurrentHashMap<>();
+        
+        private CompiledBlacklist(Map<ResourceLocation, MetaFilter> itemsByName, Set<String> fluids, List<Pattern> ores)
+        {
+            this.itemsByName = itemsByName;
+            this.fluids = fluids;
+            this.ores = ores;
+        }
+        
+        @Nonnull
+        private MetaFilter getFilter(Item item)
         {
-            if(entry.id.equals(stack.getItem().getRegistryName()) && (entry.meta < 0 || entry.meta == stack.getItemDamage()))
+            MetaFilter filter = items.get(item);
+            
+            if(filter == null)
             {
-                return true;
+                filter = item.getRegistryName() == null ? null : itemsByName.get(item.getRegistryName());
+                if(filter == null) filter = MetaFilter.NONE;
+                items.put(item, filter);
             }
+            
+            return filter;
         }
-        
-        return false;
     }
     
-    private static class BlacklistEntry
+    private static class MetaFilter
     {
-        private final ResourceLocation id;
-        private final int meta;
+        private static final MetaFilter NONE = new MetaFilter();
         
-        private BlacklistEntry(@Nonnull ResourceLocation res)
+        private boolean anyMeta = false;
+        private final BitSet metas = new BitSet();
+        
+        private void add(int meta)
         {
-            this(res, -1);
+            if(meta < 0)
+            {
+                anyMeta = true;
+            } else
+            {
+                metas.set(meta);
+            }
         }
         
-        private BlacklistEntry(@Nonnull ResourceLocation res, int meta)
+        private boolean matches(int meta)
         {
-            this.id = res;
-            this.meta = meta;
+            return anyMeta || (meta >= 0 && metas.get(meta));
         }
     }
 }
@@ -3,6 +3,7 @@ package funwayguy.bdsandm.core;
 import funwayguy.bdsandm.inventory.capability.BdsmCapabilies;
 import funwayguy.bdsandm.inventory.capability.IBarrel;
 import funwayguy.bdsandm.inventory.capability.ICrate;
+import funwayguy.bdsandm.utils.ItemKey;
 import mcp.mobius.waila.api.IWailaConfigHandler;
 import mcp.mobius.waila.api.IWailaDataAccessor;
 import mcp.mobius.waila.api.IWailaDataProvider;
@@ -55,7 +56,7 @@ public class BdsmWailaHandler implements IWailaDataProvider
                 tooltip.add("Amount: " + formatValue(crate.getCount()) + " / " + formatValue(stackCap * 64));
             } else
             {
-                tooltip.add("Item: " + crate.getRefItem().getDisplayName() + (crate.isLocked() ? " [LOCKED]" : ""));
+                tooltip.add("Item: " + getRefName(crate) + (crate.isLocked() ? " [LOCKED]" : ""));
                 tooltip.add("Amount: " + formatValue(crate.getCount()) + " / " + formatValue(stackCap * crate.getRefItem().getMaxStackSize()));
             }
             if(crate.voidOverflow() || crate.isOreDict() || crate.getStackCap() < 0) tooltip.add("Upgrades:");
@@ -66,6 +67,23 @@ public class BdsmWailaHandler implements IWailaDataProvider
         return tooltip;
     }
     
+    // The body is rebuilt every frame while looking at a crate so the name lookup is only redone when the item changes
+    private ItemKey nameKey = null;
+    private String refName = "";
+    
+    private String getRefName(ICrate crate)
+    {
+        ItemKey key = crate.getRefKey();
+        
+        if(!key.equals(nameKey))
+        {
+            nameKey = key;
+            refName = key.getStack().getDisplayName();
+        }
+        
+        return refName;
+    }
+    
     private static final DecimalFormat df = new DecimalFormat("0.##");
     private static final String[] suffixes = new String[]{"","K","M","B","T"};
     
@@ -3,6 +3,8 @@ package funwayguy.bdsandm.core.proxy;
 import funwayguy.bdsandm.client.obj.OBJLoaderColored;
 import funwayguy.bdsandm.core.BDSM;
 import funwayguy.bdsandm.network.PacketBdsm;
+import funwayguy.bdsandm.network.PacketCrateCount;
+import funwayguy.bdsandm.network.PacketSlotCount;
 import net.minecraftforge.client.model.ModelLoaderRegistry;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
@@ -27,5 +29,7 @@ public class ClientProxy extends CommonProxy
     {
         super.registerNetwork();
         BDSM.INSTANCE.network.registerMessage(PacketBdsm.ClientHandler.class, PacketBdsm.class, 0, Side.CLIENT);
+        BDSM.INSTANCE.network.registerMessage(PacketCrateCount.ClientHandler.class, PacketCrateCount.class, 1, Side.CLIENT);
+        BDSM.INSTANCE.network.registerMessage(PacketSlotCount.ClientHandler.class, PacketSlotCount.class, 2, Side.CLIENT);
     }
 }
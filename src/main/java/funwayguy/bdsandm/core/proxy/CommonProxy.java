@@ -2,6 +2,8 @@ package funwayguy.bdsandm.core.proxy;
 
 import funwayguy.bdsandm.core.BDSM;
 import funwayguy.bdsandm.network.PacketBdsm;
+import funwayguy.bdsandm.network.PacketCrateCount;
+import funwayguy.bdsandm.network.PacketSlotCount;
 import net.minecraftforge.fml.relauncher.Side;
 
 public class CommonProxy
@@ -18,5 +20,7 @@ public class CommonProxy
     public void registerNetwork()
     {
         BDSM.INSTANCE.network.registerMessage(PacketBdsm.ServerHandler.class, PacketBdsm.class, 0, Side.SERVER);
+        BDSM.INSTANCE.network.registerMessage(PacketCrateCount.ServerHandler.class, PacketCrateCount.class, 1, Side.SERVER);
+        BDSM.INSTANCE.network.registerMessage(PacketSlotCount.ServerHandler.class, PacketSlotCount.class, 2, Side.SERVER);
     }
 }
@@ -0,0 +1,156 @@
+package funwayguy.bdsandm.events;
+
+import funwayguy.bdsandm.blocks.tiles.IConditionalTicking;
+import funwayguy.bdsandm.blocks.tiles.ISyncedTile;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.world.World;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod.EventBusSubscriber;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+@EventBusSubscriber
+public class TickHandler
+{
+    private static final Set<TileEntity> pendingSyncs = new LinkedHashSet<>();
+    private static final Set<TileEntity> staleTiles = new LinkedHashSet<>();
+    private static int tickCount = 0;
+    
+    // Kept per side since the integrated server ticks on its own thread
+    private static final Set<TileEntity> serverTickChecks = new LinkedHashSet<>();
+    private static final Set<TileEntity> clientTickChecks = new LinkedHashSet<>();
+    
+    /**
+     * Marks the tile as changed. Any number of calls within the same tick result in a single
+     * {@link ISyncedTile#flushSync()} once the server tick ends.
+     */
+    public static <T extends TileEntity & ISyncedTile> void queueSync(T tile)
+    {
+        pendingSyncs.add(tile);
+    }
+    
+    /**
+     * Rechecks the tile about once a second until {@link ISyncedTile#flushStaleWatchers()} reports everyone has caught up.
+     */
+    public static <T extends TileEntity & ISyncedTile> void queueStaleCheck(T tile)
+    {
+        staleTiles.add(tile);
+    }
+    
+    /**
+     * Adds or removes the tile from its world's ticking list to match {@link IConditionalTicking#shouldTick()} once the current tick ends.
+     * The ticking list can't be changed while the world is iterating over it.
+     */
+    public static <T extends TileEntity & IConditionalTicking> void queueTickingCheck(T tile)
+    {
+        (tile.getWorld().isRemote ? clientTickChecks : serverTickChecks).add(tile);
+    }
+    
+    private static void updateTicking(Set<TileEntity> tiles)
+    {
+        if(tiles.isEmpty())
+        {
+            return;
+        }
+        
+        // Removing from the ticking list is a linear search so they're done in one pass per world
+        Map<World, Set<TileEntity>> removals = new HashMap<>();
+        
+        for(TileEntity tile : tiles)
+        {
+            if(tile.isInvalid() || !tile.hasWorld() || !tile.getWorld().isBlockLoaded(tile.getPos()))
+            {
+                continue;
+            }
+            
+            IConditionalTicking ticker = (IConditionalTicking)tile;
+            boolean shouldTick = ticker.shouldTick();
+            
+            if(shouldTick == ticker.isTicking())
+            {
+                continue;
+            }
+            
+            if(shouldTick)
+            {
+                tile.getWorld().tickableTileEntities.add(tile);
+            } else
+            {
+                removals.computeIfAbsent(tile.getWorld(), world -> new HashSet<>()).add(tile);
+            }
+            
+            ticker.setTicking(shouldTick);
+        }
+        
+        tiles.clear();
+        
+        for(Map.Entry<World, Set<TileEntity>> entry : removals.entrySet())
+        {
+            entry.getKey().tickableTileEntities.removeAll(entry.getValue());
+        }
+    }
+    
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event)
+    {
+        if(event.phase != TickEvent.Phase.END)
+        {
+            return;
+        }
+        
+        updateTicking(serverTickChecks);
+        
+        if(++tickCount % 20 == 0 && !staleTiles.isEmpty())
+        {
+            staleTiles.removeIf(tile -> tile.isInvalid() || !tile.hasWorld() || !tile.getWorld().isBlockLoaded(tile.getPos()) || !((ISyncedTile)tile).flushStaleWatchers());
+        }
+        
+        if(pendingSyncs.isEmpty())
+        {
+            return;
+        }
+        
+        // Flushing can queue further changes (e.g. comparators pulling items). Those go out next tick
+        TileEntity[] tiles = pendingSyncs.toArray(new TileEntity[0]);
+        pendingSyncs.clear();
+        
+        for(TileEntity tile : tiles)
+        {
+            if(tile.isInvalid() || !tile.hasWorld() || !tile.getWorld().isBlockLoaded(tile.getPos()))
+            {
+                continue;
+            }
+            
+            ((ISyncedTile)tile).flushSync();
+        }
+    }
+    
+    @SubscribeEvent
+    public static void onClientTick(TickEvent.ClientTickEvent event)
+    {
+        if(event.phase == TickEvent.Phase.END)
+        {
+            updateTicking(clientTickChecks);
+        }
+    }
+    
+    @SubscribeEvent
+    public static void onWorldUnload(WorldEvent.Unload event)
+    {
+        if(event.getWorld().isRemote)
+        {
+            clientTickChecks.removeIf(tile -> tile.getWorld() == event.getWorld());
+            return;
+        }
+        
+        pendingSyncs.removeIf(tile -> tile.getWorld() == event.getWorld());
+        staleTiles.removeIf(tile -> tile.getWorld() == event.getWorld());
+        serverTickChecks.removeIf(tile -> tile.getWorld() == event.getWorld());
+    }
+}
@@ -1,15 +1,43 @@
 package funwayguy.bdsandm.inventory;
 
+import funwayguy.bdsandm.core.BDSM;
+import funwayguy.bdsandm.inventory.capability.BdsmCapabilies;
+import funwayguy.bdsandm.inventory.capability.CapabilityBarrel;
+import funwayguy.bdsandm.inventory.capability.CapabilityCrate;
+import funwayguy.bdsandm.inventory.capability.IBarrel;
+import funwayguy.bdsandm.inventory.capability.ICrate;
+import funwayguy.bdsandm.network.PacketSlotCount;
 import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.entity.player.InventoryPlayer;
 import net.minecraft.inventory.Container;
+import net.minecraft.inventory.IContainerListener;
 import net.minecraft.inventory.Slot;
 import net.minecraft.item.ItemStack;
+import net.minecraftforge.energy.CapabilityEnergy;
+import net.minecraftforge.energy.IEnergyStorage;
+import net.minecraftforge.fluids.Fluid;
+import net.minecraftforge.fluids.FluidStack;
+import net.minecraftforge.fluids.capability.CapabilityFluidHandler;
+import net.minecraftforge.fluids.capability.IFluidHandlerItem;
+import net.minecraftforge.fluids.capability.IFluidTankProperties;
+
+import javax.annotation.Nullable;
 
 public class ContainerShipping extends Container
 {
     private final InventoryShipping shipInvo;
     
+    // What was last sent for the 27 container slots. Comparing whole stacks every tick walks the full NBT of every nested crate
+    // so only the stack instance and a short summary of its contents are checked. Anything besides the amounts resends the stack
+    private final ItemStack[] sentStacks = new ItemStack[27];
+    private final int[] sentSizes = new int[27];
+    private final int[] sentCounts = new int[27];
+    private final Object[] sentRefs = new Object[27];
+    private final int[] sentEnergy = new int[27];
+    private final int[] sentFluid = new int[27];
+    private final int[] sentChanges = new int[27];
+    
     public ContainerShipping(InventoryPlayer playerInvo, InventoryShipping shipInvo)
     {
         super();
@@ -84,6 +112,225 @@ public class ContainerShipping extends Container
         return itemstack;
     }
     
+    @Override
+    public void detectAndSendChanges()
+    {
+        for(int i = 0; i < inventorySlots.size(); i++)
+        {
+            ItemStack current = inventorySlots.get(i).getStack();
+            
+            if(i >= 27)
+            {
+                // Player inventory. Same as vanilla
+                ItemStack prev = inventoryItemStacks.get(i);
+                
+                if(!ItemStack.areItemStacksEqual(prev, current))
+                {
+                    boolean clientChanged = !ItemStack.areItemStacksEqualUsingNBTShareTag(prev, current);
+                    sendSlot(i, current, clientChanged);
+                }
+                
+                continue;
+            }
+            
+            ICrate crate = current.getCapability(BdsmCapabilies.CRATE_CAP, null);
+            IEnergyStorage energy = crate != null ? null : current.getCapability(CapabilityEnergy.ENERGY, null);
+            IFluidHandlerItem fluid = crate != null ? null : current.getCapability(CapabilityFluidHandler.FLUID_HANDLER_ITEM_CAPABILITY, null);
+            
+            int count = crate == null ? 0 : crate.getCount();
+            Object ref = crate != null ? getContainerRef(crate) : (fluid == null ? null : getFluidRef(fluid));
+            int storedEnergy = energy == null ? 0 : energy.getEnergyStored();
+            int storedFluid = fluid == null ? 0 : getFluidAmount(fluid);
+            int changes = shipInvo.getSlotChanges(i);
+            
+            // Crates are fully described by their count and reference. Items stored inside anything else can't be summarised
+            boolean resend = current != sentStacks[i] || ref != sentRefs[i] || (crate == null && changes != sentChanges[i]);
+            boolean energyMoved = !resend && storedEnergy != sentEnergy[i];
+            boolean fluidMoved = !resend && storedFluid != sentFluid[i];
+            
+            // Batteries and tanks only get their new amount if the client's copy reaches it the same way. Tried on our copy of it first
+            ItemStack clientStack = inventoryItemStacks.get(i);
+            if(energyMoved && setEnergy(clientStack, storedEnergy) != storedEnergy) resend = true;
+            if(fluidMoved && !resend && setFluid(clientStack, storedFluid) != storedFluid) resend = true;
+            
+            if(resend)
+            {
+                // A different stack or something only the full NBT can describe
+                if(current != sentStacks[i] && current.isEmpty() && inventoryItemStacks.get(i).isEmpty())
+                {
+                    sentStacks[i] = current;
+                } else
+                {
+                    sendSlot(i, current, true);
+                }
+            } else
+            {
+                // Everything else is on the client's copy already. It only needs the new numbers
+                if(current.getCount() != sentSizes[i] || count != sentCounts[i]) sendAmount(i, PacketSlotCount.TYPE_COUNT, current.getCount(), count);
+                if(energyMoved) sendAmount(i, PacketSlotCount.TYPE_ENERGY, current.getCount(), storedEnergy);
+                if(fluidMoved) sendAmount(i, PacketSlotCount.TYPE_FLUID, current.getCount(), storedFluid);
+            }
+            
+            sentSizes[i] = current.getCount();
+            sentCounts[i] = count;
+            sentRefs[i] = ref;
+            sentEnergy[i] = storedEnergy;
+            sentFluid[i] = storedFluid;
+            sentChanges[i] = changes;
+        }
+    }
+    
+    private void sendSlot(int slot, ItemStack stack, boolean toClient)
+    {
+        ItemStack copy = stack.isEmpty() ? ItemStack.EMPTY : stack.copy();
+        inventoryItemStacks.set(slot, copy);
+        if(slot < 27) sentStacks[slot] = stack;
+        
+        if(!toClient)
+        {
+            return;
+        }
+        
+        for(IContainerListener listener : listeners)
+        {
+            listener.sendSlotContents(this, slot, copy);
+        }
+    }
+    
+    private void sendAmount(int slot, int type, int size, int amount)
+    {
+        PacketSlotCount message = new PacketSlotCount(windowId, slot, type, size, amount);
+        
+        for(IContainerListener listener : listeners)
+        {
+            if(listener instanceof EntityPlayerMP) BDSM.INSTANCE.network.sendTo(message, (EntityPlayerMP)listener);
+        }
+    }
+    
+    /**
+     * @return something that only compares identical while the crate holds the same item or fluid
+     */
+    private static Object getContainerRef(ICrate crate)
+    {
+        if(crate instanceof IBarrel)
+        {
+            FluidStack refFluid = ((IBarrel)crate).getRefFluid();
+            if(refFluid != null) return refFluid.getFluid();
+        }
+        
+        return crate.getRefKey().getStack();
+    }
+    
+    @Nullable
+    private static Fluid getFluidRef(IFluidHandlerItem fluid)
+    {
+        IFluidTankProperties[] tanks = fluid.getTankProperties();
+        
+        for(int i = 0; tanks != null && i < tanks.length; i++)
+        {
+            FluidStack contents = tanks[i].getContents();
+            if(contents != null) return contents.getFluid();
+        }
+        
+        return null;
+    }
+    
+    private static int getFluidAmount(IFluidHandlerItem fluid)
+    {
+        IFluidTankProperties[] tanks = fluid.getTankProperties();
+        int amount = 0;
+        
+        for(int i = 0; tanks != null && i < tanks.length; i++)
+        {
+            FluidStack contents = tanks[i].getContents();
+            if(contents != null) amount += contents.amount;
+        }
+        
+        return amount;
+    }
+    
+    /**
+     * Brings the stack's stored energy to the given amount through its own capability. Done the same way on both sides
+     * @return the amount stored afterwards or -1 if the stack holds no energy
+     */
+    private static int setEnergy(ItemStack stack, int amount)
+    {
+        IEnergyStorage energy = stack.getCapability(CapabilityEnergy.ENERGY, null);
+        if(energy == null) return -1;
+        
+        int stored = energy.getEnergyStored();
+        
+        if(amount > stored)
+        {
+            energy.receiveEnergy(amount - stored, false);
+        } else if(amount < stored)
+        {
+            energy.extractEnergy(stored - amount, false);
+        }
+        
+        return energy.getEnergyStored();
+    }
+    
+    /**
+     * Brings the stack's stored fluid to the given amount through its own capability. Done the same way on both sides
+     * @return the amount stored afterwards or -1 if the stack holds no fluid
+     */
+    private static int setFluid(ItemStack stack, int amount)
+    {
+        IFluidHandlerItem fluid = stack.getCapability(CapabilityFluidHandler.FLUID_HANDLER_ITEM_CAPABILITY, null);
+        if(fluid == null) return -1;
+        
+        int stored = getFluidAmount(fluid);
+        Fluid ref = getFluidRef(fluid);
+        
+        if(amount > stored && ref != null)
+        {
+            fluid.fill(new FluidStack(ref, amount - stored), true);
+        } else if(amount < stored)
+        {
+            fluid.drain(stored - amount, true);
+        }
+        
+        return getFluidAmount(fluid);
+    }
+    
+    /**
+     * Client side. Applies an amount update for a crate, barrel, battery or tank in one of the container slots.
+     * @see PacketSlotCount
+     */
+    public void readSlotCount(int slot, int type, int size, int count)
+    {
+        if(slot < 0 || slot >= 27)
+        {
+            return;
+        }
+        
+        ItemStack stack = inventorySlots.get(slot).getStack();
+        if(stack.isEmpty()) return;
+        
+        stack.setCount(size);
+        
+        if(type == PacketSlotCount.TYPE_ENERGY)
+        {
+            setEnergy(stack, count);
+            return;
+        } else if(type == PacketSlotCount.TYPE_FLUID)
+        {
+            setFluid(stack, count);
+            return;
+        }
+        
+        ICrate crate = stack.getCapability(BdsmCapabilies.CRATE_CAP, null);
+        
+        if(crate instanceof CapabilityCrate)
+        {
+            ((CapabilityCrate)crate).setClientCount(count);
+        } else if(crate instanceof CapabilityBarrel)
+        {
+            ((CapabilityBarrel)crate).setClientCount(count);
+        }
+    }
+    
     @Override
     public boolean canInteractWith(EntityPlayer playerIn)
     {
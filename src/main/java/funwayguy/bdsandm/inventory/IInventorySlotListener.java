@@ -0,0 +1,10 @@
+package funwayguy.bdsandm.inventory;
+
+/**
+ * Told which slot changed, ahead of the usual IInventoryChangedListener notification.
+ * @see InventoryShipping#addSlotListener(IInventorySlotListener)
+ */
+public interface IInventorySlotListener
+{
+    void onSlotChanged(int slot);
+}
@@ -5,15 +5,28 @@ import funwayguy.bdsandm.core.BDSM;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.inventory.InventoryBasic;
 import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
 import net.minecraftforge.energy.CapabilityEnergy;
 import net.minecraftforge.fluids.capability.CapabilityFluidHandler;
 import net.minecraftforge.items.CapabilityItemHandler;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
 
 public class InventoryShipping extends InventoryBasic
 {
     private final TileEntityShipping tile;
+    private final List<IInventorySlotListener> slotListeners = new ArrayList<>();
+    
+    // Saved form of each slot. Dropped when the slot or the container in it changes and rebuilt on the next save
+    private final NBTTagCompound[] slotTags = new NBTTagCompound[27];
+    private final ItemStack[] slotTagStacks = new ItemStack[27];
+    private final int[] slotTagSizes = new int[27];
+    
+    // Bumped when an item stored inside the slot's stack changes in place. Lets the GUI notice what its summary can't describe
+    private final int[] slotChanges = new int[27];
     
     public InventoryShipping(TileEntityShipping tile)
     {
@@ -21,6 +34,72 @@ public class InventoryShipping extends InventoryBasic
         this.tile = tile;
     }
     
+    public void addSlotListener(IInventorySlotListener listener)
+    {
+        slotListeners.add(listener);
+    }
+    
+    private void notifySlotChanged(int slot)
+    {
+        markSlotDirty(slot);
+        
+        for(IInventorySlotListener listener : slotListeners)
+        {
+            listener.onSlotChanged(slot);
+        }
+    }
+    
+    /**
+     * Drops the saved form of the slot. Needed whenever the stack in it is changed in place, e.g. a nested crate being filled
+     */
+    public void markSlotDirty(int slot)
+    {
+        slotTags[slot] = null;
+    }
+    
+    /**
+     * Marks the slot dirty and tells open GUIs that the items stored inside its stack changed without the stack being replaced
+     */
+    public void markSlotChanged(int slot)
+    {
+        markSlotDirty(slot);
+        slotChanges[slot]++;
+    }
+    
+    public int getSlotChanges(int slot)
+    {
+        return slotChanges[slot];
+    }
+    
+    /**
+     * @return the slot's entry for the saved inventory list or null if it's empty. Reused between saves until the slot is marked dirty
+     */
+    @Nullable
+    public NBTTagCompound getSlotTag(int slot)
+    {
+        ItemStack stack = getStackInSlot(slot);
+        
+        if(stack.isEmpty())
+        {
+            slotTags[slot] = null;
+            return null;
+        }
+        
+        // Anything that resized the stack without going through the inventory still gets picked up
+        if(slotTags[slot] == null || slotTagStacks[slot] != stack || slotTagSizes[slot] != stack.getCount())
+        {
+            NBTTagCompound itemTag = new NBTTagCompound();
+            itemTag.setByte("slot", (byte)slot);
+            itemTag.setTag("item", stack.writeToNBT(new NBTTagCompound()));
+            
+            slotTags[slot] = itemTag;
+            slotTagStacks[slot] = stack;
+            slotTagSizes[slot] = stack.getCount();
+        }
+        
+        return slotTags[slot];
+    }
+    
     public boolean isUsableByPlayer(EntityPlayer player)
     {
         return player.getDistanceSq(tile.getPos()) < 256;
@@ -73,12 +152,64 @@ public class InventoryShipping extends InventoryBasic
         }
     }
     
+    @Override
+    public void setInventorySlotContents(int index, @Nonnull ItemStack stack)
+    {
+        // Slot listeners need to hear about it before the general change listeners do
+        boolean wasNotDirty = notDirty;
+        notDirty = true;
+        super.setInventorySlotContents(index, stack);
+        notDirty = wasNotDirty;
+        
+        notifySlotChanged(index);
+        this.markDirty();
+    }
+    
+    @Nonnull
+    @Override
+    public ItemStack decrStackSize(int index, int count)
+    {
+        boolean wasNotDirty = notDirty;
+        notDirty = true;
+        ItemStack stack = super.decrStackSize(index, count);
+        notDirty = wasNotDirty;
+        
+        if(!stack.isEmpty())
+        {
+            notifySlotChanged(index);
+            this.markDirty();
+        }
+        
+        return stack;
+    }
+    
+    @Nonnull
+    @Override
+    public ItemStack removeStackFromSlot(int index)
+    {
+        ItemStack stack = super.removeStackFromSlot(index);
+        if(!stack.isEmpty()) notifySlotChanged(index);
+        return stack;
+    }
+    
+    @Override
+    public void clear()
+    {
+        super.clear();
+        
+        // Emptied without going through the slot setters. The slot listeners still need to drop what they held for each slot
+        for(int i = 0; i < getSizeInventory(); i++)
+        {
+            notifySlotChanged(i);
+        }
+    }
+    
     // Necessary so that the proxy can bulk access and set items before marking the whole thing dirty when its done
     public void setSlotWithoutNotice(int slot, ItemStack stack)
     {
         notDirty = true;
         
-        this.setInventorySlotContents(slot, stack);
+        this.setInventorySlotContents(slot, stack); // Slot listeners are still told
         
         notDirty = false;
     }
@@ -2,6 +2,8 @@ package funwayguy.bdsandm.inventory.capability;
 
 import funwayguy.bdsandm.core.BDSM;
 import funwayguy.bdsandm.core.BdsmConfig;
+import funwayguy.bdsandm.utils.ItemKey;
+import funwayguy.bdsandm.utils.OreDictCache;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
@@ -10,20 +12,23 @@ import net.minecraftforge.fluids.FluidStack;
 import net.minecraftforge.fluids.capability.CapabilityFluidHandler;
 import net.minecraftforge.fluids.capability.IFluidTankProperties;
 import net.minecraftforge.items.CapabilityItemHandler;
-import net.minecraftforge.oredict.OreDictionary;
-import net.minecraftforge.oredict.OreIngredient;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 public class CapabilityBarrel implements ICrate, IBarrel
 {
     private FluidStack refFluid = null;
     private ItemStack refStack = ItemStack.EMPTY;
-    private final List<OreIngredient> cachedOres = new ArrayList<>();
+    private NBTTagCompound refStackTag = null; // Saved form of refStack until first accessed after loading
+    private NBTTagCompound refStackNBT = null; // Saved form of the current refStack. Kept across count changes until it's replaced
+    private NBTTagCompound refFluidNBT = null; // Same for refFluid
+    private NBTTagCompound displayRefTag = null; // Client side. The compound the current refStack was last read from
+    private ItemKey refKey = null;
+    private int[] oreIds = OreDictCache.NO_ORES;
+    private ItemStack oreIdsRef = null;
+    private int oreIdsGen = -1;
     private int maxStackCapacity;
     private boolean oreDict = false;
     private boolean lock = false;
@@ -36,6 +41,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
     private int count = 0;
     
     private ICrateCallback callback;
+    private NBTTagCompound cachedNBT = null;
     
     private final IFluidTankProperties[] tankProps;
     
@@ -62,6 +68,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
     @Override
     public void setColors(int[] c)
     {
+        cachedNBT = null;
         for(int i = 0; i < c.length && i < colors.length; i++)
         {
             colors[i] = c[i];
@@ -85,6 +92,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
     @Override
     public void setLocked(boolean state)
     {
+        cachedNBT = null;
         this.lock = state;
     }
     
@@ -97,26 +105,21 @@ public class CapabilityBarrel implements ICrate, IBarrel
     @Override
     public void setVoidOverflow(boolean state)
     {
+        cachedNBT = null;
         this.overflow = state;
     }
     
     @Override
     public boolean canMergeWith(ItemStack stack)
     {
-        if(refFluid == null && ItemStack.areItemStackTagsEqual(refStack, stack))
+        if(refFluid == null && getRefKey().matchesTag(stack))
         {
-            if(ItemStack.areItemsEqual(refStack, stack))
+            if(getRefKey().matchesItem(stack))
             {
                 return true;
             } else if(oreDict)
             {
-                for(OreIngredient ing : cachedOres)
-                {
-                    if(ing.apply(stack))
-                    {
-                        return true;
-                    }
-                }
+                return OreDictCache.sharesOre(getOreIds(), OreDictCache.getOreIds(stack));
             }
         }
         
@@ -128,9 +131,72 @@ public class CapabilityBarrel implements ICrate, IBarrel
     @Override
     public ItemStack getRefItem()
     {
+        if(refStackTag != null)
+        {
+            refStack = new ItemStack(refStackTag);
+            refStackTag = null;
+        }
+        
         return refStack;
     }
     
+    private void setRefStack(@Nonnull ItemStack stack)
+    {
+        this.refStack = stack;
+        this.refStackTag = null;
+        this.refStackNBT = null;
+        this.displayRefTag = null;
+    }
+    
+    private void setRefFluid(@Nullable FluidStack fluid)
+    {
+        this.refFluid = fluid;
+        this.refFluidNBT = null;
+    }
+    
+    /**
+     * Keeps the saved reference stack as NBT until something asks for it. Most containers in a freshly loaded chunk never do.
+     */
+    private void setRefStackTag(@Nonnull NBTTagCompound tag)
+    {
+        // Empty stacks are saved as air with no count
+        if(!tag.hasKey("id", 8) || tag.getByte("Count") <= 0 || tag.getString("id").equals("minecraft:air"))
+        {
+            setRefStack(ItemStack.EMPTY);
+        } else
+        {
+            this.refStack = ItemStack.EMPTY;
+            this.refStackTag = tag;
+            this.refStackNBT = tag;
+            this.displayRefTag = null;
+        }
+    }
+    
+    @Nonnull
+    @Override
+    public ItemKey getRefKey()
+    {
+        // Rebuilt lazily whenever refStack is replaced
+        if(refKey == null || refKey.getStack() != getRefItem())
+        {
+            refKey = ItemKey.of(getRefItem());
+        }
+        
+        return refKey;
+    }
+    
+    private int[] getOreIds()
+    {
+        if(oreIdsRef != getRefItem() || oreIdsGen != OreDictCache.getGeneration())
+        {
+            oreIds = OreDictCache.getOreIds(getRefItem());
+            oreIdsRef = getRefItem();
+            oreIdsGen = OreDictCache.getGeneration();
+        }
+        
+        return oreIds;
+    }
+    
     @Override
     public CapabilityBarrel setCallback(ICrateCallback callback)
     {
@@ -154,25 +220,14 @@ public class CapabilityBarrel implements ICrate, IBarrel
     @Override
     public void syncContainer()
     {
+        cachedNBT = null;
+        
         if(callback != null)
         {
             callback.onCrateChanged();
         }
         
-        if(refStack.isEmpty())
-        {
-            slotRef = ItemStack.EMPTY;
-        } else
-        {
-            if(!slotRef.isEmpty() && canMergeWith(slotRef))
-            {
-                slotRef.setCount(getCount());
-            } else
-            {
-                slotRef = refStack.copy();
-                slotRef.setCount(getCount());
-            }
-        }
+        updateSlotRef();
     }
     
     @Override
@@ -184,6 +239,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
     @Override
     public void setStackCap(int value)
     {
+        cachedNBT = null;
         this.stackCapacity = value;
     }
     
@@ -202,19 +258,71 @@ public class CapabilityBarrel implements ICrate, IBarrel
     @Override
     public void enableOreDict(boolean state)
     {
+        cachedNBT = null;
         this.oreDict = state;
     }
     
     @Override
     public int getCount()
     {
-        return stackCapacity < 0 ? ((1 << 15) * refStack.getMaxStackSize()) : count;
+        return stackCapacity < 0 ? ((1 << 15) * getRefItem().getMaxStackSize()) : count;
+    }
+    
+    /**
+     * @return The stored count, ignoring the creative upgrade.
+     */
+    public int getSurvivalCount()
+    {
+        return this.count;
+    }
+    
+    /**
+     * Client side. Sets the raw count sent by the server without going through the sync callback.
+     * @see funwayguy.bdsandm.network.PacketCrateCount
+     */
+    public void setClientCount(int count)
+    {
+        cachedNBT = null;
+        this.count = count;
+        slotRefStale = true;
     }
     
+    /**
+     * Copies the state of another barrel straight across, sharing the reference item, fluid and their saved forms.
+     * Other implementations still go through NBT.
+     */
     @Override
     public void copyContainer(IStackContainer container)
     {
-        this.deserializeNBT(container.serializeNBT());
+        if(!(container instanceof CapabilityBarrel))
+        {
+            this.deserializeNBT(container.serializeNBT());
+            return;
+        }
+        
+        CapabilityBarrel other = (CapabilityBarrel)container;
+        
+        // Each instance gets its own reference stack and fluid since both are handed out. The NBT is only ever read so it stays shared
+        this.refStack = other.refStack.isEmpty() ? ItemStack.EMPTY : other.refStack.copy();
+        this.refStackTag = other.refStackTag;
+        this.refStackNBT = other.refStackNBT;
+        this.displayRefTag = other.displayRefTag;
+        this.refKey = null; // Keyed to the old stack instance. Rebuilt on demand
+        this.refFluid = other.refFluid == null ? null : other.refFluid.copy();
+        this.refFluidNBT = other.refFluidNBT;
+        this.oreIds = other.oreIds;
+        this.oreIdsRef = other.oreIdsRef == other.refStack ? this.refStack : null;
+        this.oreIdsGen = other.oreIdsGen;
+        this.count = other.count;
+        this.stackCapacity = other.stackCapacity;
+        this.maxStackCapacity = other.maxStackCapacity;
+        this.oreDict = other.oreDict;
+        this.overflow = other.overflow;
+        this.lock = other.lock;
+        this.colors = other.colors.clone();
+        this.cachedNBT = other.cachedNBT;
+        
+        slotRefStale = true;
     }
     
     @Override
@@ -235,11 +343,13 @@ public class CapabilityBarrel implements ICrate, IBarrel
             {
                 if(refFluid == null)
                 {
-                    refFluid = resource.copy();
-                    refFluid.amount = 1;
+                    FluidStack ref = resource.copy();
+                    ref.amount = 1;
+                    setRefFluid(ref);
                 }
     
                 count = 1000;
+                cachedNBT = null;
             }
             
             return resource.amount;
@@ -252,8 +362,9 @@ public class CapabilityBarrel implements ICrate, IBarrel
         {
             if(refFluid == null)
             {
-                refFluid = resource.copy();
-                refFluid.amount = 1;
+                FluidStack ref = resource.copy();
+                ref.amount = 1;
+                setRefFluid(ref);
             }
             
             count += fill;
@@ -287,7 +398,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
             
             if(count <= 0 && !lock)
             {
-                refFluid = null;
+                setRefFluid(null);
             }
             
             syncContainer();
@@ -322,7 +433,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
             
             if(count <= 0 && !lock)
             {
-                refFluid = null;
+                setRefFluid(null);
             }
             
             syncContainer();
@@ -338,16 +449,36 @@ public class CapabilityBarrel implements ICrate, IBarrel
     }
     
     private ItemStack slotRef = ItemStack.EMPTY;
+    private boolean slotRefStale = false;
+    
+    private void updateSlotRef()
+    {
+        slotRefStale = false;
+        ItemStack ref = getRefItem();
+        
+        if(ref.isEmpty())
+        {
+            slotRef = ItemStack.EMPTY;
+        } else if(!slotRef.isEmpty() && canMergeWith(slotRef))
+        {
+            slotRef.setCount(getCount());
+        } else
+        {
+            slotRef = ref.copy();
+            slotRef.setCount(getCount());
+        }
+    }
     
     @Nonnull
     @Override
     public ItemStack getStackInSlot(int slot)
     {
-        if(slot != 0 || refStack.isEmpty())
+        if(slot != 0 || getRefItem().isEmpty())
         {
             return ItemStack.EMPTY;
         }
         
+        if(slotRefStale) updateSlotRef();
         return slotRef;
     }
     
@@ -358,29 +489,16 @@ public class CapabilityBarrel implements ICrate, IBarrel
         if(slot < 0 || slot >= 2 || refFluid != null || stack.isEmpty() || !BdsmConfig.multiPurposeBarrel || BdsmConfig.isBlacklisted(stack))
         {
             return stack;
-        } else if(refStack.isEmpty() || (stackCapacity < 0 && !lock))
+        } else if(getRefItem().isEmpty() || (stackCapacity < 0 && !lock))
         {
             if(lock || stack.hasCapability(CapabilityItemHandler.ITEM_HANDLER_CAPABILITY, null) || stack.hasCapability(CapabilityFluidHandler.FLUID_HANDLER_ITEM_CAPABILITY, null) || stack.hasCapability(CapabilityEnergy.ENERGY, null))
             {
                 return stack; // BANNED! Nested containers are not permitted!
             } else if(!simulate)
             {
-                refStack = stack.copy();
+                setRefStack(stack.copy());
                 count = Math.min(stack.getCount(), (stackCapacity < 0 ? (1 << 15) : stackCapacity) * stack.getMaxStackSize());
-                refStack.setCount(1);
-                
-                cachedOres.clear();
-                int[] aryIDs = OreDictionary.getOreIDs(refStack);
-                topLoop:
-                for(int id : aryIDs)
-                {
-                    String name = OreDictionary.getOreName(id);
-                    for(String bl : BdsmConfig.oreDictBlacklist)
-                    {
-                        if(name.matches(bl)) continue topLoop;
-                    }
-                    cachedOres.add(new OreIngredient(name));
-                }
+                getRefItem().setCount(1);
                 
                 syncContainer();
             }
@@ -395,7 +513,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
             return stack;
         }
         
-        long rem = stackCapacity < 0 ? 0 : (long)stackCapacity * (long)refStack.getMaxStackSize() - getCount();
+        long rem = stackCapacity < 0 ? 0 : (long)stackCapacity * (long)getRefItem().getMaxStackSize() - getCount();
         int add = (int)Math.min(rem, stack.getCount());
         if(add < 0) add = 0;
         
@@ -415,12 +533,12 @@ public class CapabilityBarrel implements ICrate, IBarrel
     @Override
     public ItemStack extractItem(int slot, int amount, boolean simulate)
     {
-        if(slot != 0 || refStack.isEmpty())
+        if(slot != 0 || getRefItem().isEmpty())
         {
             return ItemStack.EMPTY;
         } else if(stackCapacity < 0)
         {
-            ItemStack copy = refStack.copy();
+            ItemStack copy = getRefItem().copy();
             copy.setCount(amount);
             return copy;
         } else if(count <= 0)
@@ -430,18 +548,18 @@ public class CapabilityBarrel implements ICrate, IBarrel
         
         int maxExtract;
         
-        if(slot < count / refStack.getMaxStackSize())
+        if(slot < count / getRefItem().getMaxStackSize())
         {
-            maxExtract = refStack.getMaxStackSize();
-        } else if(slot == count / refStack.getMaxStackSize())
+            maxExtract = getRefItem().getMaxStackSize();
+        } else if(slot == count / getRefItem().getMaxStackSize())
         {
-            maxExtract = (count % refStack.getMaxStackSize());
+            maxExtract = (count % getRefItem().getMaxStackSize());
         } else
         {
             return ItemStack.EMPTY;
         }
         
-        ItemStack copy = refStack.copy();
+        ItemStack copy = getRefItem().copy();
         copy.setCount(Math.min(amount, maxExtract));
         
         if(!simulate)
@@ -450,8 +568,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
             
             if(count <= 0 && !lock)
             {
-                refStack = ItemStack.EMPTY;
-                cachedOres.clear();
+                setRefStack(ItemStack.EMPTY);
             }
             
             syncContainer();
@@ -580,8 +697,8 @@ public class CapabilityBarrel implements ICrate, IBarrel
                     setStackCap(64); // Also erases creative upgrade (which we're not refunding)
                     if(!lock)
                     {
-                        refStack = ItemStack.EMPTY;
-                        refFluid = null;
+                        setRefStack(ItemStack.EMPTY);
+                        setRefFluid(null);
                     }
                 }
                 
@@ -614,9 +731,8 @@ public class CapabilityBarrel implements ICrate, IBarrel
             
             if(!lock && getCount() <= 0)
             {
-                refStack = ItemStack.EMPTY;
-                cachedOres.clear();
-                refFluid = null;
+                setRefStack(ItemStack.EMPTY);
+                setRefFluid(null);
             }
             
             syncContainer();
@@ -627,27 +743,73 @@ public class CapabilityBarrel implements ICrate, IBarrel
         return false;
     }
     
+    /**
+     * Returns a copy every time. The cached compound and the reference tags inside it are shared with other containers and
+     * earlier saves, so nothing outside this class may hold on to them.
+     */
     @Override
     public NBTTagCompound serializeNBT()
     {
+        return getCachedNBT().copy();
+    }
+    
+    /**
+     * Kept until the next change. Must not be modified or handed out
+     */
+    private NBTTagCompound getCachedNBT()
+    {
+        if(cachedNBT != null)
+        {
+            return cachedNBT;
+        }
+        
         NBTTagCompound nbt = new NBTTagCompound();
-        nbt.setTag("refStack", refStack.writeToNBT(new NBTTagCompound()));
-        nbt.setTag("refFluid", refFluid == null ? new NBTTagCompound() : refFluid.writeToNBT(new NBTTagCompound()));
+        if(refStackNBT == null) refStackNBT = refStack.writeToNBT(new NBTTagCompound());
+        if(refFluidNBT == null) refFluidNBT = refFluid == null ? new NBTTagCompound() : refFluid.writeToNBT(new NBTTagCompound());
+        nbt.setTag("refStack", refStackNBT);
+        nbt.setTag("refFluid", refFluidNBT);
         nbt.setInteger("count", count);
         nbt.setInteger("stackCap", stackCapacity);
         nbt.setInteger("maxCap", maxStackCapacity);
         nbt.setBoolean("oreDict", oreDict);
         nbt.setBoolean("overflow", overflow);
         nbt.setBoolean("locked", lock);
-        nbt.setIntArray("objColors", colors);
+        nbt.setIntArray("objColors", colors.clone()); // setColors() writes into the array
+        cachedNBT = nbt;
         return nbt;
     }
     
     @Override
     public void deserializeNBT(NBTTagCompound nbt)
     {
-        refStack = new ItemStack(nbt.getCompoundTag("refStack"));
-        refFluid = FluidStack.loadFluidStackFromNBT(nbt.getCompoundTag("refFluid"));
+        setRefStackTag(nbt.getCompoundTag("refStack"));
+        readFields(nbt);
+    }
+    
+    /**
+     * Client side. Reads only what the renderers and Hwyla display. The current reference stack is kept
+     * when the server sends an identical one again instead of being rebuilt for every update.
+     */
+    public void readDisplayNBT(NBTTagCompound nbt)
+    {
+        NBTTagCompound refTag = nbt.getCompoundTag("refStack");
+        
+        if(!refTag.equals(displayRefTag))
+        {
+            setRefStackTag(refTag);
+            displayRefTag = refTag;
+        }
+        
+        readFields(nbt);
+    }
+    
+    /**
+     * Everything saved besides the reference stack. Shared by the full load and the client display update
+     */
+    private void readFields(NBTTagCompound nbt)
+    {
+        cachedNBT = null;
+        setRefFluid(FluidStack.loadFluidStackFromNBT(nbt.getCompoundTag("refFluid")));
         count = nbt.getInteger("count");
         stackCapacity = nbt.getInteger("stackCap");
         maxStackCapacity = nbt.getInteger("maxCap");
@@ -656,33 +818,8 @@ public class CapabilityBarrel implements ICrate, IBarrel
         lock = nbt.getBoolean("locked");
         colors = Arrays.copyOf(nbt.getIntArray("objColors"), colors.length);
         
-        if(!refStack.isEmpty())
-        {
-            cachedOres.clear();
-            int[] aryIDs = OreDictionary.getOreIDs(refStack);
-            topLoop:
-            for(int id : aryIDs)
-            {
-                String name = OreDictionary.getOreName(id);
-                for(String bl : BdsmConfig.oreDictBlacklist)
-                {
-                    if(name.matches(bl)) continue topLoop;
-                }
-                cachedOres.add(new OreIngredient(name));
-            }
-            
-            if(!slotRef.isEmpty() && canMergeWith(slotRef))
-            {
-                slotRef.setCount(getCount());
-            } else
-            {
-                slotRef = refStack.copy();
-                slotRef.setCount(getCount());
-            }
-        } else
-        {
-            slotRef = ItemStack.EMPTY;
-        }
+        // Rebuilt on first access
+        slotRefStale = true;
     }
     
     private final IFluidTankProperties fluidTank = new IFluidTankProperties()
@@ -706,7 +843,7 @@ public class CapabilityBarrel implements ICrate, IBarrel
         @Override
         public boolean canFill()
         {
-            return refStack.isEmpty();
+            return refStackTag == null && refStack.isEmpty(); // Avoids building the pending stack. A saved tag is never empty
         }
 
         @Override
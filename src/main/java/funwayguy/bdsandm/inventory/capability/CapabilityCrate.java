@@ -2,16 +2,14 @@ package funwayguy.bdsandm.inventory.capability;
 
 import funwayguy.bdsandm.core.BDSM;
 import funwayguy.bdsandm.core.BdsmConfig;
+import funwayguy.bdsandm.utils.ItemKey;
+import funwayguy.bdsandm.utils.OreDictCache;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
-import net.minecraftforge.oredict.OreDictionary;
-import net.minecraftforge.oredict.OreIngredient;
 
 import javax.annotation.Nonnull;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 import static funwayguy.bdsandm.utils.ItemStackUtils.isContainer;
 
@@ -25,15 +23,29 @@ public class CapabilityCrate implements ICrate
      * @see CapabilityCrate#insertItem(int, ItemStack, boolean)
      */
     private ItemStack refStack = ItemStack.EMPTY;
+    /**
+     * The saved form of refStack while it has not been needed yet since the last load.
+     * @see CapabilityCrate#getRefItem()
+     */
+    private NBTTagCompound refStackTag = null;
+    /**
+     * The saved form of the current reference, kept across count changes. Cleared only when refStack is replaced.
+     * @see CapabilityCrate#getCachedNBT()
+     */
+    private NBTTagCompound refStackNBT = null;
+    // Client side. The compound the current refStack was last read from
+    private NBTTagCompound displayRefTag = null;
+    private ItemKey refKey = null;
 
     /**
-     * The ore dictionary mappings.
-     * Should be optimized and only used when needed.
-     * Likely deferred as well since constantly checking this can lead to hanging up.
-     * Work could be done in order to permanently cache this into an NBT array.
-     * Simplification of the data being retained also could help in reducing the impacts of accessing this array.
+     * The blacklist filtered ore IDs of refStack, shared with every other container holding the same item.
+     * Looked up again whenever refStack is replaced or the ore dictionary changes.
+     * @see CapabilityCrate#getOreIds()
+     * @see OreDictCache
      */
-    private final List<OreIngredient> cachedOres = new ArrayList<>();
+    private int[] oreIds = OreDictCache.NO_ORES;
+    private ItemStack oreIdsRef = null;
+    private int oreIdsGen = -1;
 
     /**
      * The maximum amount of stacks that can be fit inside this crate after upgrades are applied.
@@ -66,6 +78,12 @@ public class CapabilityCrate implements ICrate
      */
     private ICrateCallback callback;
     
+    /**
+     * The saved form of the container. Callers of serializeNBT get a copy. Cleared by anything that changes the container.
+     * @see CapabilityCrate#getCachedNBT()
+     */
+    private NBTTagCompound cachedNBT = null;
+    
     public CapabilityCrate(int initCap, int maxStackCap)
     {
         this.stackCapacity = initCap;
@@ -87,6 +105,7 @@ public class CapabilityCrate implements ICrate
     @Override
     public void setColors(int[] c)
     {
+        cachedNBT = null;
         for(int i = 0; i < c.length && i < colors.length; i++)
         {
             colors[i] = c[i];
@@ -103,9 +122,54 @@ public class CapabilityCrate implements ICrate
     @Override
     public ItemStack getRefItem()
     {
+        if(refStackTag != null)
+        {
+            refStack = new ItemStack(refStackTag);
+            refStackTag = null;
+        }
+        
         return this.refStack;
     }
     
+    private void setRefStack(@Nonnull ItemStack stack)
+    {
+        this.refStack = stack;
+        this.refStackTag = null;
+        this.refStackNBT = null;
+        this.displayRefTag = null;
+    }
+    
+    /**
+     * Keeps the saved reference stack as NBT until something asks for it. Most containers in a freshly loaded chunk never do.
+     */
+    private void setRefStackTag(@Nonnull NBTTagCompound tag)
+    {
+        // Empty stacks are saved as air with no count
+        if(!tag.hasKey("id", 8) || tag.getByte("Count") <= 0 || tag.getString("id").equals("minecraft:air"))
+        {
+            setRefStack(ItemStack.EMPTY);
+        } else
+        {
+            this.refStack = ItemStack.EMPTY;
+            this.refStackTag = tag;
+            this.refStackNBT = tag;
+            this.displayRefTag = null;
+        }
+    }
+    
+    @Nonnull
+    @Override
+    public ItemKey getRefKey()
+    {
+        // Rebuilt lazily whenever refStack is replaced
+        if(refKey == null || refKey.getStack() != getRefItem())
+        {
+            refKey = ItemKey.of(getRefItem());
+        }
+        
+        return refKey;
+    }
+    
     @Override
     public boolean isLocked()
     {
@@ -115,6 +179,7 @@ public class CapabilityCrate implements ICrate
     @Override
     public void setLocked(boolean state)
     {
+        cachedNBT = null;
         this.lock = state;
     }
     
@@ -127,6 +192,7 @@ public class CapabilityCrate implements ICrate
     @Override
     public void setVoidOverflow(boolean state)
     {
+        cachedNBT = null;
         this.overflow = state;
     }
     
@@ -138,17 +204,14 @@ public class CapabilityCrate implements ICrate
         // It was previously needed that the refStack was set to something prior
         // to calling this function, since Empty != Any and it would return false.
 
-        if (refStack == ItemStack.EMPTY) return true;
+        if (getRefItem() == ItemStack.EMPTY) return true;
 
-        boolean nonOreCheck =
-                ItemStack.areItemsEqual(refStack, stack) && ItemStack.areItemStackTagsEqual(refStack, stack);
+        boolean nonOreCheck = getRefKey().matches(stack);
 
         // Checking the ore dictionary is more expensive than doing ItemStack comparisons.
         // Only run ore dictionary checks if the simplest checks failed.
         if (!nonOreCheck && oreDict) {
-            for (OreIngredient ore : cachedOres) {
-                if(ore.apply(stack)) return true;
-            }
+            return OreDictCache.sharesOre(getOreIds(), OreDictCache.getOreIds(stack));
         }
 
         return nonOreCheck;
@@ -173,25 +236,14 @@ public class CapabilityCrate implements ICrate
     @Override
     public void syncContainer()
     {
+        cachedNBT = null;
+        
         if(callback != null)
         {
             callback.onCrateChanged();
         }
         
-        if(refStack.isEmpty())
-        {
-            slotRef = ItemStack.EMPTY;
-        } else
-        {
-            if(!slotRef.isEmpty() && canMergeWith(slotRef))
-            {
-                slotRef.setCount(getCount());
-            } else
-            {
-                slotRef = refStack.copy();
-                slotRef.setCount(getCount());
-            }
-        }
+        updateSlotRef();
     }
 
     /**
@@ -221,12 +273,14 @@ public class CapabilityCrate implements ICrate
     @Override
     public void enableOreDict(boolean state)
     {
+        cachedNBT = null;
         this.oreDict = state;
     }
     
     @Override
     public void setStackCap(int value)
     {
+        cachedNBT = null;
         this.stackCapacity = value;
     }
 
@@ -246,12 +300,23 @@ public class CapabilityCrate implements ICrate
     public int getSurvivalCount() {
         return this.count;
     }
+    
+    /**
+     * Client side. Sets the raw count sent by the server without going through the sync callback.
+     * @see funwayguy.bdsandm.network.PacketCrateCount
+     */
+    public void setClientCount(int count)
+    {
+        cachedNBT = null;
+        this.count = count;
+        slotRefStale = true;
+    }
 
     /**
      * @return The maximum amount of items that can fit on this barrel *without* a creative upgrade.
      */
     public int getSurvivalCap() {
-        return this.stackCapacity * refStack.getMaxStackSize();
+        return this.stackCapacity * getRefItem().getMaxStackSize();
     }
 
 
@@ -259,7 +324,7 @@ public class CapabilityCrate implements ICrate
      * @return The maximum amount of items that can fit on this barrel *with* a creative upgrade.
      */
     public int getCreativeCap() {
-        return getCreativeStackCap() * refStack.getMaxStackSize();
+        return getCreativeStackCap() * getRefItem().getMaxStackSize();
     }
 
 
@@ -297,6 +362,25 @@ public class CapabilityCrate implements ICrate
      * @see CapabilityCrate#getStackInSlot(int)
      */
     private ItemStack slotRef = ItemStack.EMPTY;
+    private boolean slotRefStale = false;
+    
+    private void updateSlotRef()
+    {
+        slotRefStale = false;
+        ItemStack ref = getRefItem();
+        
+        if(ref.isEmpty())
+        {
+            slotRef = ItemStack.EMPTY;
+        } else if(!slotRef.isEmpty() && canMergeWith(slotRef))
+        {
+            slotRef.setCount(getCount());
+        } else
+        {
+            slotRef = ref.copy();
+            slotRef.setCount(getCount());
+        }
+    }
 
     /**
      * This function is defined by Forge not the mod.
@@ -313,11 +397,12 @@ public class CapabilityCrate implements ICrate
     @Override
     public ItemStack getStackInSlot(int slot)
     {
-        if(slot != 0 || refStack.isEmpty())
+        if(slot != 0 || getRefItem().isEmpty())
         {
             return ItemStack.EMPTY;
         }
         
+        if(slotRefStale) updateSlotRef();
         return slotRef;
     }
     
@@ -329,7 +414,7 @@ public class CapabilityCrate implements ICrate
         }
 
         // If the barrel is empty and locked
-        if (refStack.isEmpty() && lock) {
+        if (getRefItem().isEmpty() && lock) {
             return stack;
         }
 
@@ -353,7 +438,7 @@ public class CapabilityCrate implements ICrate
         // Adding a new Item if there is no items
         // OR Replacing the current item if it is creative AND is not locked.
 
-        if (refStack.isEmpty() || (isCreativeCapacity() && !lock)) {
+        if (getRefItem().isEmpty() || (isCreativeCapacity() && !lock)) {
 
             /*  Lifted: isContainer check since nested containers are not allowed.
              *  Lifted: lock check since it only runs if its locked and its empty.
@@ -363,11 +448,9 @@ public class CapabilityCrate implements ICrate
              */
 
             if (!simulate) {
-                refStack = stack.copy();
+                setRefStack(stack.copy());
                 count = stack.getCount();
-                refStack.setCount(1);
-
-                populateOreDictCache(refStack);
+                getRefItem().setCount(1);
 
                 syncContainer();
             }
@@ -434,17 +517,17 @@ public class CapabilityCrate implements ICrate
     private long getSpaceRemaining() {
         return isCreativeCapacity()
                 ? 0
-                : (long) stackCapacity * (long) refStack.getMaxStackSize() - getCount();
+                : (long) stackCapacity * (long) getRefItem().getMaxStackSize() - getCount();
     }
 
-    public void populateOreDictCache(@Nonnull ItemStack stack) {
-        cachedOres.clear();
-        int[] oreDictIds = OreDictionary.getOreIDs(stack);
-        for (int id : oreDictIds) {
-            String name = OreDictionary.getOreName(id);
-            if (BdsmConfig.oreDictBlacklist.stream().anyMatch(name::matches)) continue;
-            cachedOres.add(new OreIngredient(name));
+    private int[] getOreIds() {
+        if (oreIdsRef != getRefItem() || oreIdsGen != OreDictCache.getGeneration()) {
+            oreIds = OreDictCache.getOreIds(getRefItem());
+            oreIdsRef = getRefItem();
+            oreIdsGen = OreDictCache.getGeneration();
         }
+
+        return oreIds;
     }
 
     private boolean invalidCrateSlot(int slot) {
@@ -459,17 +542,17 @@ public class CapabilityCrate implements ICrate
     @Override
     public ItemStack extractItem(int slot, int amount, boolean simulate)
     {
-        if(slot != 0 || refStack.isEmpty())
+        if(slot != 0 || getRefItem().isEmpty())
         {
             return ItemStack.EMPTY;
         } else if(stackCapacity < 0)
         {
-            ItemStack copy = refStack.copy();
+            ItemStack copy = getRefItem().copy();
             copy.setCount(amount);
             return copy;
         }
         
-        ItemStack copy = refStack.copy();
+        ItemStack copy = getRefItem().copy();
         copy.setCount(Math.min(amount, getCount()));
         
         if(!simulate)
@@ -478,8 +561,7 @@ public class CapabilityCrate implements ICrate
             
             if(count <= 0 && !lock)
             {
-                refStack = ItemStack.EMPTY;
-                cachedOres.clear();
+                setRefStack(ItemStack.EMPTY);
             }
             
             syncContainer();
@@ -498,13 +580,43 @@ public class CapabilityCrate implements ICrate
     @Override
     public int getSlotLimit(int slot)
     {
-        return overflow ? Integer.MAX_VALUE : (refStack.isEmpty() ? 64 : refStack.getMaxStackSize()) * stackCapacity;
+        return overflow ? Integer.MAX_VALUE : (getRefItem().isEmpty() ? 64 : getRefItem().getMaxStackSize()) * stackCapacity;
     }
     
+    /**
+     * Copies the state of another crate straight across. The reference stack, its saved form and ore IDs are shared since
+     * neither crate modifies them in place. Other implementations still go through NBT.
+     */
     @Override
     public void copyContainer(IStackContainer crate)
     {
-        this.deserializeNBT(crate.serializeNBT());
+        if(!(crate instanceof CapabilityCrate))
+        {
+            this.deserializeNBT(crate.serializeNBT());
+            return;
+        }
+        
+        CapabilityCrate other = (CapabilityCrate)crate;
+        
+        // Each instance gets its own reference stack and fluid since both are handed out. The NBT is only ever read so it stays shared
+        this.refStack = other.refStack.isEmpty() ? ItemStack.EMPTY : other.refStack.copy();
+        this.refStackTag = other.refStackTag;
+        this.refStackNBT = other.refStackNBT;
+        this.displayRefTag = other.displayRefTag;
+        this.refKey = null; // Keyed to the old stack instance. Rebuilt on demand
+        this.oreIds = other.oreIds;
+        this.oreIdsRef = other.oreIdsRef == other.refStack ? this.refStack : null;
+        this.oreIdsGen = other.oreIdsGen;
+        this.count = other.count;
+        this.stackCapacity = other.stackCapacity;
+        this.maxStackCapacity = other.maxStackCapacity;
+        this.oreDict = other.oreDict;
+        this.overflow = other.overflow;
+        this.lock = other.lock;
+        this.colors = other.colors.clone();
+        this.cachedNBT = other.cachedNBT; // Describes exactly the same state
+        
+        slotRefStale = true;
     }
     
     @Override
@@ -619,7 +731,7 @@ public class CapabilityCrate implements ICrate
                     
                     if(stackCapacity < 0) count = 0; // Must be reset in the event of a creative upgrade (which modifies the underlying value at times)
                     setStackCap(64); // Also erases creative upgrade (which we're not refunding)
-                    if(!lock) refStack = ItemStack.EMPTY;
+                    if(!lock) setRefStack(ItemStack.EMPTY);
                 }
                 
                 if(oreDict)
@@ -651,8 +763,7 @@ public class CapabilityCrate implements ICrate
             
             if(!lock && getCount() <= 0)
             {
-                refStack = ItemStack.EMPTY;
-                cachedOres.clear();
+                setRefStack(ItemStack.EMPTY);
             }
             
             syncContainer();
@@ -663,25 +774,70 @@ public class CapabilityCrate implements ICrate
         return false;
     }
     
+    /**
+     * Returns a copy every time. The cached compound and the reference tags inside it are shared with other containers and
+     * earlier saves, so nothing outside this class may hold on to them.
+     */
     @Override
     public NBTTagCompound serializeNBT()
     {
+        return getCachedNBT().copy();
+    }
+    
+    /**
+     * Kept until the next change. Must not be modified or handed out
+     */
+    private NBTTagCompound getCachedNBT()
+    {
+        if(cachedNBT != null)
+        {
+            return cachedNBT;
+        }
+        
         NBTTagCompound nbt = new NBTTagCompound();
-        nbt.setTag("refStack", refStack.writeToNBT(new NBTTagCompound()));
+        if(refStackNBT == null) refStackNBT = refStack.writeToNBT(new NBTTagCompound());
+        nbt.setTag("refStack", refStackNBT);
         nbt.setInteger("count", count);
         nbt.setInteger("stackCap", stackCapacity);
         nbt.setInteger("maxCap", maxStackCapacity);
         nbt.setBoolean("oreDict", oreDict);
         nbt.setBoolean("overflow", overflow);
         nbt.setBoolean("locked", lock);
-        nbt.setIntArray("objColors", colors);
+        nbt.setIntArray("objColors", colors.clone()); // setColors() writes into the array
+        cachedNBT = nbt;
         return nbt;
     }
     
     @Override
     public void deserializeNBT(NBTTagCompound nbt)
     {
-        refStack = new ItemStack(nbt.getCompoundTag("refStack"));
+        setRefStackTag(nbt.getCompoundTag("refStack"));
+        readFields(nbt);
+    }
+    
+    /**
+     * Client side. Reads only what the renderers and Hwyla display. The current reference stack is kept
+     * when the server sends an identical one again instead of being rebuilt for every update.
+     */
+    public void readDisplayNBT(NBTTagCompound nbt)
+    {
+        NBTTagCompound refTag = nbt.getCompoundTag("refStack");
+        
+        if(!refTag.equals(displayRefTag))
+        {
+            setRefStackTag(refTag);
+            displayRefTag = refTag;
+        }
+        
+        readFields(nbt);
+    }
+    
+    /**
+     * Everything saved besides the reference stack. Shared by the full load and the client display update
+     */
+    private void readFields(NBTTagCompound nbt)
+    {
+        cachedNBT = null;
         count = nbt.getInteger("count");
         stackCapacity = nbt.getInteger("stackCap");
         maxStackCapacity = nbt.getInteger("maxCap");
@@ -690,32 +846,7 @@ public class CapabilityCrate implements ICrate
         lock = nbt.getBoolean("locked");
         colors = Arrays.copyOf(nbt.getIntArray("objColors"), colors.length);
         
-        if(!refStack.isEmpty())
-        {
-            cachedOres.clear();
-            int[] aryIDs = OreDictionary.getOreIDs(refStack);
-            topLoop:
-            for(int id : aryIDs)
-            {
-                String name = OreDictionary.getOreName(id);
-                for(String bl : BdsmConfig.oreDictBlacklist)
-                {
-                    if(name.matches(bl)) continue topLoop;
-                }
-                cachedOres.add(new OreIngredient(name));
-            }
-            
-            if(!slotRef.isEmpty() && canMergeWith(slotRef))
-            {
-                slotRef.setCount(getCount());
-            } else
-            {
-                slotRef = refStack.copy();
-                slotRef.setCount(getCount());
-            }
-        } else
-        {
-            slotRef = ItemStack.EMPTY;
-        }
+        // Rebuilt on first access
+        slotRefStale = true;
     }
 }
@@ -27,18 +27,6 @@ public class CapabilityProviderBarrel implements ICapabilityProvider, ICapabilit
         this.stack = stack;
         barrel.setFluidContainer(stack);
         
-        final ItemStack finStack = stack;
-        barrel.setCallback(() -> {
-            NBTTagCompound sTag = stack.getTagCompound();
-            if(sTag == null)
-            {
-                sTag = new NBTTagCompound();
-                finStack.setTagCompound(sTag);
-            }
-            
-            sTag.setTag("barrelCap", barrel.serializeNBT());
-        });
-        
         return this;
     }
     
@@ -75,15 +63,12 @@ public class CapabilityProviderBarrel implements ICapabilityProvider, ICapabilit
     @Override
     public NBTTagCompound serializeNBT()
     {
-        NBTTagCompound tag = barrel.serializeNBT();
-        if(stack != null) stack.setTagInfo("barrelCap", tag.copy()); // Purely for display purposes client side. Not to be trusted as accurate
-        return tag;
+        return barrel.serializeNBT();
     }
     
     @Override
     public void deserializeNBT(NBTTagCompound nbt)
     {
         barrel.deserializeNBT(nbt);
-        if(stack != null) stack.setTagInfo("barrelCap", nbt.copy()); // Purely for display purposes client side. Not to be trusted as accurate
     }
 }
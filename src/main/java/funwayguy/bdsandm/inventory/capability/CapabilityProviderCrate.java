@@ -25,18 +25,6 @@ public class CapabilityProviderCrate implements ICapabilityProvider, ICapability
     {
         this.stack = stack;
         
-        final ItemStack finStack = stack;
-        crate.setCallback(() -> {
-            NBTTagCompound sTag = stack.getTagCompound();
-            if(sTag == null)
-            {
-                sTag = new NBTTagCompound();
-                finStack.setTagCompound(sTag);
-            }
-            
-            sTag.setTag("crateCap", crate.serializeNBT()); // Purely for display purposes client side. Not to be trusted as accurate
-        });
-        
         return this;
     }
     
@@ -64,15 +52,12 @@ public class CapabilityProviderCrate implements ICapabilityProvider, ICapability
     @Override
     public NBTTagCompound serializeNBT()
     {
-        NBTTagCompound tag = crate.serializeNBT();
-        if(stack != null) stack.setTagInfo("crateCap", tag.copy()); // Purely for display purposes client side. Not to be trusted as accurate
-        return tag;
+        return crate.serializeNBT();
     }
     
     @Override
     public void deserializeNBT(NBTTagCompound nbt)
     {
         crate.deserializeNBT(nbt);
-        if(stack != null) stack.setTagInfo("crateCap", nbt.copy()); // Purely for display purposes client side. Not to be trusted as accurate
     }
 }
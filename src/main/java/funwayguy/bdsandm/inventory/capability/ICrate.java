@@ -1,5 +1,6 @@
 package funwayguy.bdsandm.inventory.capability;
 
+import funwayguy.bdsandm.utils.ItemKey;
 import net.minecraft.item.ItemStack;
 import net.minecraftforge.items.IItemHandler;
 
@@ -9,6 +10,8 @@ public interface ICrate extends IStackContainer, IItemHandler
 {
     @Nonnull
     ItemStack getRefItem();
+    @Nonnull
+    ItemKey getRefKey();
     boolean canMergeWith(ItemStack stack); // Because for some reason ItemStack doesn't have suitable comparisons
     
     boolean isOreDict();
@@ -0,0 +1,341 @@
+package funwayguy.bdsandm.inventory.capability;
+
+import funwayguy.bdsandm.utils.ItemKey;
+import net.minecraft.item.ItemStack;
+import net.minecraftforge.items.IItemHandler;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Item view over a shipping container where crates holding the same item share one slot with their summed count.
+ * Extracting from that slot drains across all of them. The distinct items are followed by one always empty slot
+ * that routes anything inserted into it like {@link ShippingProxyWrapper#insertAnywhere(ItemStack, boolean)}
+ * and then the slots of any other nested inventories as they are.
+ */
+public class ShippingAggregateView implements IItemHandler
+{
+    private final ShippingProxyWrapper proxy;
+    
+    // One entry per distinct item. Removing a key moves the last one into its place
+    private final List<ItemKey> keys = new ArrayList<>();
+    private final Map<ItemKey, Integer> keyIndex = new HashMap<>();
+    private long[] totals = new long[8];
+    private int[] keySlots = new int[8]; // How many crates hold each key
+    private ItemStack[] stacks = new ItemStack[8]; // Built on request. Null once the total changes
+    
+    // What each inventory slot was last counted as. Only slots marked stale are looked at again
+    private final BitSet staleSlots = new BitSet();
+    private final ItemKey[] slotKeys;
+    private final int[] slotCounts;
+    private final IItemHandler[] slotOthers;
+    private boolean othersStale = true;
+    
+    // Nested inventories that aren't crates. Same prefix sum layout as the proxy's own slots
+    private IItemHandler[] otherHandlers = new IItemHandler[0];
+    private int[] otherOffsets = new int[]{0};
+    private int[] otherSlots = new int[0];
+    
+    ShippingAggregateView(ShippingProxyWrapper proxy)
+    {
+        this.proxy = proxy;
+        
+        int size = proxy.getInventorySize();
+        this.slotKeys = new ItemKey[size];
+        this.slotCounts = new int[size];
+        this.slotOthers = new IItemHandler[size];
+        staleSlots.set(0, size);
+    }
+    
+    /**
+     * Called by the proxy whenever a nested container or the slot holding it changes
+     */
+    void markStale(int slot)
+    {
+        staleSlots.set(slot);
+    }
+    
+    private void refresh()
+    {
+        proxy.updateRoutes();
+        
+        if(staleSlots.isEmpty())
+        {
+            return;
+        }
+        
+        for(int slot = staleSlots.nextSetBit(0); slot >= 0; slot = staleSlots.nextSetBit(slot + 1))
+        {
+            updateSlot(slot);
+        }
+        
+        staleSlots.clear();
+        if(othersStale) rebuildOthers();
+    }
+    
+    /**
+     * Takes the slot's old count off its key's total and adds the new one
+     */
+    private void updateSlot(int slot)
+    {
+        ItemKey key = proxy.getRouteKey(slot);
+        ICrate crate = proxy.getCrate(slot);
+        int count = key == null ? 0 : crate.getCount();
+        ItemKey oldKey = slotKeys[slot];
+        
+        if(oldKey != null && oldKey.equals(key))
+        {
+            // Same item. Only the total moves so the view slots keep their order
+            int idx = keyIndex.get(key);
+            totals[idx] += count - slotCounts[slot];
+            stacks[idx] = null;
+        } else
+        {
+            if(oldKey != null) removeFromKey(oldKey, slotCounts[slot]);
+            if(key != null) addToKey(key, count);
+        }
+        
+        slotKeys[slot] = key;
+        slotCounts[slot] = count;
+        
+        // Rebuilt whenever a slot with some other inventory changes since its slot count can change too
+        IItemHandler other = crate == null ? proxy.getItemHandler(slot) : null;
+        if(other != null || slotOthers[slot] != null) othersStale = true;
+        slotOthers[slot] = other;
+    }
+    
+    private void addToKey(ItemKey key, int count)
+    {
+        Integer idx = keyIndex.get(key);
+        if(idx == null) idx = addKey(key);
+        
+        totals[idx] += count;
+        stacks[idx] = null;
+        keySlots[idx]++;
+    }
+    
+    private void removeFromKey(ItemKey key, int count)
+    {
+        int idx = keyIndex.get(key);
+        totals[idx] -= count;
+        stacks[idx] = null;
+        if(--keySlots[idx] <= 0) removeKey(idx);
+    }
+    
+    private int addKey(ItemKey key)
+    {
+        int idx = keys.size();
+        
+        if(idx >= totals.length)
+        {
+            totals = Arrays.copyOf(totals, idx * 2);
+            keySlots = Arrays.copyOf(keySlots, idx * 2);
+            stacks = Arrays.copyOf(stacks, idx * 2);
+        }
+        
+        keys.add(key);
+        keyIndex.put(key, idx);
+        totals[idx] = 0;
+        keySlots[idx] = 0;
+        stacks[idx] = null;
+        return idx;
+    }
+    
+    private void removeKey(int idx)
+    {
+        int last = keys.size() - 1;
+        keyIndex.remove(keys.get(idx));
+        
+        if(idx != last)
+        {
+            ItemKey moved = keys.get(last);
+            keys.set(idx, moved);
+            keyIndex.put(moved, idx);
+            totals[idx] = totals[last];
+            keySlots[idx] = keySlots[last];
+            stacks[idx] = stacks[last];
+        }
+        
+        keys.remove(last);
+        stacks[last] = null;
+    }
+    
+    private void rebuildOthers()
+    {
+        othersStale = false;
+        
+        int size = slotOthers.length;
+        List<IItemHandler> handlers = new ArrayList<>();
+        int[] offsets = new int[size + 1];
+        int[] hSlots = new int[size];
+        int total = 0;
+        
+        for(int slot = 0; slot < size; slot++)
+        {
+            IItemHandler handler = slotOthers[slot];
+            if(handler == null || handler.getSlots() <= 0) continue;
+            
+            offsets[handlers.size()] = total;
+            hSlots[handlers.size()] = slot;
+            handlers.add(handler);
+            total += handler.getSlots();
+        }
+        
+        offsets[handlers.size()] = total;
+        otherHandlers = handlers.toArray(new IItemHandler[0]);
+        otherOffsets = Arrays.copyOf(offsets, otherHandlers.length + 1);
+        otherSlots = Arrays.copyOf(hSlots, otherHandlers.length);
+    }
+    
+    private ItemStack getKeyStack(int idx)
+    {
+        if(stacks[idx] == null)
+        {
+            stacks[idx] = keys.get(idx).getStack().copy();
+            stacks[idx].setCount((int)Math.min(totals[idx], Integer.MAX_VALUE));
+        }
+        
+        return stacks[idx];
+    }
+    
+    /**
+     * @return the index into otherHandlers that owns the view slot or -1 if it's out of range
+     */
+    private int getOtherIndex(int slot)
+    {
+        int local = slot - keys.size() - 1;
+        
+        if(local < 0 || local >= otherOffsets[otherHandlers.length])
+        {
+            return -1;
+        }
+        
+        int idx = Arrays.binarySearch(otherOffsets, 0, otherHandlers.length, local);
+        return idx >= 0 ? idx : -idx - 2;
+    }
+    
+    @Override
+    public int getSlots()
+    {
+        refresh();
+        return keys.size() + 1 + otherOffsets[otherHandlers.length];
+    }
+    
+    @Nonnull
+    @Override
+    public ItemStack getStackInSlot(int slot)
+    {
+        refresh();
+        
+        if(slot >= 0 && slot < keys.size())
+        {
+            return getKeyStack(slot);
+        }
+        
+        int idx = getOtherIndex(slot);
+        return idx < 0 ? ItemStack.EMPTY : otherHandlers[idx].getStackInSlot(slot - keys.size() - 1 - otherOffsets[idx]);
+    }
+    
+    @Nonnull
+    @Override
+    public ItemStack insertItem(int slot, @Nonnull ItemStack stack, boolean simulate)
+    {
+        refresh();
+        
+        if(stack.isEmpty())
+        {
+            return stack;
+        } else if(slot == keys.size())
+        {
+            return proxy.insertAnywhere(stack, simulate);
+        } else if(slot >= 0 && slot < keys.size())
+        {
+            BitSet slots = proxy.getRouteSlots(keys.get(slot));
+            if(slots == null || !keys.get(slot).matches(stack)) return stack;
+            
+            ItemStack result = proxy.insertInto(slots, stack, simulate);
+            if(!simulate && result.getCount() != stack.getCount()) proxy.markDirty();
+            return result;
+        }
+        
+        int idx = getOtherIndex(slot);
+        if(idx < 0) return stack;
+        
+        ItemStack result = otherHandlers[idx].insertItem(slot - keys.size() - 1 - otherOffsets[idx], stack, simulate);
+        if(!simulate) proxy.onNestedChanged(otherSlots[idx]);
+        return result;
+    }
+    
+    @Nonnull
+    @Override
+    public ItemStack extractItem(int slot, int amount, boolean simulate)
+    {
+        refresh();
+        
+        if(amount <= 0)
+        {
+            return ItemStack.EMPTY;
+        } else if(slot >= 0 && slot < keys.size())
+        {
+            BitSet slots = proxy.getRouteSlots(keys.get(slot));
+            ItemStack pulled = ItemStack.EMPTY;
+            
+            // The index is only brought up to date in refresh() so marking the drained crates doesn't disturb the loop
+            for(int s = slots == null ? -1 : slots.nextSetBit(0); s >= 0 && pulled.getCount() < amount; s = slots.nextSetBit(s + 1))
+            {
+                ItemStack tmp = proxy.getCrate(s).extractItem(0, amount - pulled.getCount(), simulate);
+                if(tmp.isEmpty()) continue;
+                
+                if(pulled.isEmpty())
+                {
+                    pulled = tmp;
+                } else
+                {
+                    pulled.grow(tmp.getCount());
+                }
+                
+                if(!simulate) proxy.markSlotStale(s);
+            }
+            
+            if(!simulate && !pulled.isEmpty()) proxy.markDirty();
+            return pulled;
+        }
+        
+        int idx = getOtherIndex(slot);
+        if(idx < 0) return ItemStack.EMPTY;
+        
+        ItemStack result = otherHandlers[idx].extractItem(slot - keys.size() - 1 - otherOffsets[idx], amount, simulate);
+        if(!simulate && !result.isEmpty()) proxy.onNestedChanged(otherSlots[idx]);
+        return result;
+    }
+    
+    @Override
+    public int getSlotLimit(int slot)
+    {
+        refresh();
+        
+        if(slot == keys.size())
+        {
+            return 64;
+        } else if(slot >= 0 && slot < keys.size())
+        {
+            long limit = 0;
+            BitSet slots = proxy.getRouteSlots(keys.get(slot));
+            
+            for(int s = slots == null ? -1 : slots.nextSetBit(0); s >= 0; s = slots.nextSetBit(s + 1))
+            {
+                limit += proxy.getCrate(s).getSlotLimit(0);
+            }
+            
+            return (int)Math.min(limit, Integer.MAX_VALUE);
+        }
+        
+        int idx = getOtherIndex(slot);
+        return idx < 0 ? 0 : otherHandlers[idx].getSlotLimit(slot - keys.size() - 1 - otherOffsets[idx]);
+    }
+}
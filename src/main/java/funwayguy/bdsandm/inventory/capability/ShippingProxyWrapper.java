@@ -1,12 +1,17 @@
 package funwayguy.bdsandm.inventory.capability;
 
 import funwayguy.bdsandm.blocks.tiles.TileEntityShipping;
+import funwayguy.bdsandm.core.BdsmConfig;
+import funwayguy.bdsandm.inventory.IInventorySlotListener;
 import funwayguy.bdsandm.inventory.InventoryShipping;
+import funwayguy.bdsandm.utils.ItemKey;
+import funwayguy.bdsandm.utils.OreDictCache;
 import net.minecraft.inventory.IInventory;
 import net.minecraft.inventory.IInventoryChangedListener;
 import net.minecraft.item.ItemStack;
 import net.minecraftforge.energy.CapabilityEnergy;
 import net.minecraftforge.energy.IEnergyStorage;
+import net.minecraftforge.fluids.Fluid;
 import net.minecraftforge.fluids.FluidStack;
 import net.minecraftforge.fluids.capability.CapabilityFluidHandler;
 import net.minecraftforge.fluids.capability.IFluidHandler;
@@ -19,155 +24,631 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
 
-public class ShippingProxyWrapper implements IItemHandler, IFluidHandler, IEnergyStorage, IInventoryChangedListener
+public class ShippingProxyWrapper implements IItemHandler, IFluidHandler, IEnergyStorage, IInventoryChangedListener, IInventorySlotListener
 {
+    private final TileEntityShipping tileShip;
     private final InventoryShipping shipInvo;
     
-    private final TreeSet<ProxyEntry<IItemHandler>> invoItems = new TreeSet<>();
+    // Capabilities of the item in each inventory slot. Only the changed slot is looked up again
+    private final ItemStack[] slotStacks;
+    private final IItemHandler[] slotItems;
+    private final IFluidHandlerItem[] slotFluids;
+    private final IEnergyStorage[] slotEnergy;
     
-    private final TreeSet<ProxyEntry<IFluidHandlerItem>> fluidItems = new TreeSet<>();
+    // Non-empty entries of the above in slot order. Replaced rather than modified so a loop over them can't be disturbed by a slot change
+    private IFluidHandlerItem[] fluidItems = new IFluidHandlerItem[0];
+    private int[] fluidSlots = new int[0];
+    private IEnergyStorage[] energyItems = new IEnergyStorage[0];
+    private int[] energySlots = new int[0];
     
-    private final TreeSet<ProxyEntry<IEnergyStorage>> energyItems = new TreeSet<>();
+    // Proxy slot 0 is always empty and routes anything inserted into it through insertAnywhere(). It comes first so automation
+    // scanning the slots in order finds it before probing every nested slot
+    private static final int ROUTING_SLOT = 0;
+    
+    // Item handlers in slot order for proxy slot lookups. slotOffsets[i] is the first slot of itemHandlers[i] counted after the routing slot
+    // and the extra last entry is the total. Handlers without slots are left out so the offsets strictly increase
+    private IItemHandler[] itemHandlers = new IItemHandler[0];
+    private int[] slotOffsets = new int[]{0};
+    private int[] handlerSlots = new int[0];
+    
+    // Running totals over energyItems. Recounted when the batteries change and adjusted by each transfer in between
+    private boolean energyStale = true;
+    private long energyStored;
+    private long energyCapacity;
+    
+    // Routing index for insertAnywhere(). Slots are marked stale when their stack or its contents change and looked up again on the next insert
+    private final ICrate[] slotCrates;
+    private final ItemKey[] routeKeys;
+    private final int[][] routeOres;
+    private final BitSet staleRoutes = new BitSet();
+    private final Map<ItemKey, BitSet> routesByItem = new HashMap<>();
+    private final Map<Integer, BitSet> routesByOre = new HashMap<>();
+    private final BitSet emptyCrates = new BitSet();
+    private int routeOreGen = -1;
+    
+    // Fluid index for fill() and drain(). Marked stale alongside the routing index
+    private static final Fluid[] NO_FLUIDS = new Fluid[0];
+    private final Fluid[][] tankFluids;
+    private final BitSet staleTanks = new BitSet();
+    private final Map<Fluid, BitSet> tanksByFluid = new HashMap<>();
+    private final BitSet emptyTanks = new BitSet();
+    private IFluidTankProperties[] tankProperties = null;
+    
+    private ShippingAggregateView aggregateView;
     
     public ShippingProxyWrapper(TileEntityShipping tileShip, InventoryShipping invo)
     {
+        this.tileShip = tileShip;
         this.shipInvo = invo;
+        
+        int size = invo.getSizeInventory();
+        this.slotStacks = new ItemStack[size];
+        this.slotItems = new IItemHandler[size];
+        this.slotFluids = new IFluidHandlerItem[size];
+        this.slotEnergy = new IEnergyStorage[size];
+        this.slotCrates = new ICrate[size];
+        this.routeKeys = new ItemKey[size];
+        this.routeOres = new int[size][];
+        this.tankFluids = new Fluid[size][];
+        Arrays.fill(slotStacks, ItemStack.EMPTY);
+        Arrays.fill(routeOres, OreDictCache.NO_ORES);
+        Arrays.fill(tankFluids, NO_FLUIDS);
+        
+        this.shipInvo.addSlotListener(this);
         this.shipInvo.addInventoryChangeListener(this);
         this.shipInvo.addInventoryChangeListener(tileShip);
     }
     
     private boolean skipRefresh = false;
     
-    private void markDirty()
+    void markDirty()
     {
         skipRefresh = true;
         shipInvo.markDirty();
         skipRefresh = false;
     }
     
-    private void refreshProxyEntries()
+    @Override
+    public void onSlotChanged(int slot)
     {
-        if(skipRefresh) return;
+        if(refreshSlot(slot)) rebuildIndexes();
+    }
+    
+    /**
+     * Looks up the capabilities of the slot again if a different item is now in it.
+     * @return true if any of them changed
+     */
+    private boolean refreshSlot(int slot)
+    {
+        ItemStack stack = shipInvo.getStackInSlot(slot);
+        if(stack.isEmpty()) stack = ItemStack.EMPTY; // Catches stacks that were shrunk to nothing in place
         
-        invoItems.clear();
-        fluidItems.clear();
-        energyItems.clear();
+        if(stack == slotStacks[slot])
+        {
+            return false;
+        }
         
-        for(int i = 0; i < shipInvo.getSizeInventory(); i++)
+        slotStacks[slot] = stack;
+        slotCrates[slot] = null;
+        markSlotStale(slot);
+        IItemHandler itemHandler = null;
+        IFluidHandlerItem fluidHandlerItem = null;
+        IEnergyStorage energyStorage = null;
+        
+        if(!stack.isEmpty())
         {
-            ItemStack stack = shipInvo.getStackInSlot(i);
-            
-            if(stack.isEmpty())
+            if(stack.hasCapability(BdsmCapabilies.CRATE_CAP, null))
             {
-                continue;
+                slotCrates[slot] = stack.getCapability(BdsmCapabilies.CRATE_CAP, null);
             }
             
             if(stack.hasCapability(CapabilityItemHandler.ITEM_HANDLER_CAPABILITY, null))
             {
-                IItemHandler itemHandler = stack.getCapability(CapabilityItemHandler.ITEM_HANDLER_CAPABILITY, null);
+                itemHandler = stack.getCapability(CapabilityItemHandler.ITEM_HANDLER_CAPABILITY, null);
                 assert itemHandler != null;
-                invoItems.add(new ProxyEntry<>(i, itemHandler));
             }
             
             if(stack.hasCapability(CapabilityFluidHandler.FLUID_HANDLER_ITEM_CAPABILITY, null))
             {
-                IFluidHandlerItem fluidHandlerItem = stack.getCapability(CapabilityFluidHandler.FLUID_HANDLER_ITEM_CAPABILITY, null);
+                fluidHandlerItem = stack.getCapability(CapabilityFluidHandler.FLUID_HANDLER_ITEM_CAPABILITY, null);
                 assert fluidHandlerItem != null;
-                fluidItems.add(new ProxyEntry<>(i, fluidHandlerItem));
             }
             
             if(stack.hasCapability(CapabilityEnergy.ENERGY, null))
             {
-                IEnergyStorage energyStorage = stack.getCapability(CapabilityEnergy.ENERGY, null);
+                energyStorage = stack.getCapability(CapabilityEnergy.ENERGY, null);
                 assert energyStorage != null;
-                energyItems.add(new ProxyEntry<>(i, energyStorage));
             }
         }
+        
+        boolean changed = itemHandler != slotItems[slot] || fluidHandlerItem != slotFluids[slot] || energyStorage != slotEnergy[slot];
+        slotItems[slot] = itemHandler;
+        slotFluids[slot] = fluidHandlerItem;
+        slotEnergy[slot] = energyStorage;
+        return changed;
     }
     
-    @Override
-    public void onInventoryChanged(@Nonnull IInventory invBasic)
+    private void rebuildIndexes()
     {
-        this.refreshProxyEntries();
+        int size = slotStacks.length;
+        List<IItemHandler> handlers = new ArrayList<>();
+        int[] offsets = new int[size + 1];
+        int[] hSlots = new int[size];
+        int total = 0;
+        List<IFluidHandlerItem> fluids = new ArrayList<>();
+        int[] fSlots = new int[size];
+        List<IEnergyStorage> energy = new ArrayList<>();
+        int[] eSlots = new int[size];
+        
+        for(int i = 0; i < size; i++)
+        {
+            IItemHandler itemHandler = slotItems[i];
+            int slots = itemHandler == null ? 0 : itemHandler.getSlots();
+            
+            if(slots > 0)
+            {
+                offsets[handlers.size()] = total;
+                hSlots[handlers.size()] = i;
+                handlers.add(itemHandler);
+                total += slots;
+            }
+            
+            if(slotFluids[i] != null)
+            {
+                fSlots[fluids.size()] = i;
+                fluids.add(slotFluids[i]);
+            }
+            
+            if(slotEnergy[i] != null)
+            {
+                eSlots[energy.size()] = i;
+                energy.add(slotEnergy[i]);
+            }
+        }
+        
+        offsets[handlers.size()] = total;
+        itemHandlers = handlers.toArray(new IItemHandler[0]);
+        slotOffsets = Arrays.copyOf(offsets, itemHandlers.length + 1);
+        handlerSlots = Arrays.copyOf(hSlots, itemHandlers.length);
+        fluidItems = fluids.toArray(new IFluidHandlerItem[0]);
+        fluidSlots = Arrays.copyOf(fSlots, fluidItems.length);
+        energyItems = energy.toArray(new IEnergyStorage[0]);
+        energySlots = Arrays.copyOf(eSlots, energyItems.length);
+        energyStale = true;
+        tileShip.resetEnergyBackoff();
     }
     
-    @Override
-    public int receiveEnergy(int maxReceive, boolean simulate)
+    /**
+     * @return the index into itemHandlers that owns the slot, counted after the routing slot, or -1 if it's out of range
+     */
+    private int getHandlerIndex(int slot)
     {
-        int pushed = 0;
-    
-        Iterator<ProxyEntry<IEnergyStorage>> eIter = energyItems.iterator();
+        if(slot < 0 || slot >= slotOffsets[itemHandlers.length])
+        {
+            return -1;
+        }
         
-        while(eIter.hasNext() && pushed < maxReceive)
+        int idx = Arrays.binarySearch(slotOffsets, 0, itemHandlers.length, slot);
+        return idx >= 0 ? idx : -idx - 2; // Not a handler's first slot. Belongs to the one before the insertion point
+    }
+    
+    /**
+     * Marks the nested container in the slot as changed so the routing and fluid indexes look at it again
+     */
+    void markSlotStale(int slot)
+    {
+        staleRoutes.set(slot);
+        staleTanks.set(slot);
+        tankProperties = null;
+        shipInvo.markSlotDirty(slot);
+        if(aggregateView != null) aggregateView.markStale(slot);
+    }
+    
+    private void updateTanks()
+    {
+        for(int slot = staleTanks.nextSetBit(0); slot >= 0; slot = staleTanks.nextSetBit(slot + 1))
         {
-            ProxyEntry<IEnergyStorage> eStore = eIter.next();
+            for(Fluid fluid : tankFluids[slot]) removeRoute(tanksByFluid, fluid, slot);
             
-            if(eStore.handler.canReceive())
+            IFluidHandlerItem handler = slotFluids[slot];
+            IFluidTankProperties[] props = handler == null ? new IFluidTankProperties[0] : handler.getTankProperties();
+            Fluid[] fluids = new Fluid[props.length];
+            int n = 0;
+            boolean empty = false;
+            
+            for(IFluidTankProperties prop : props)
             {
-                pushed += eStore.handler.receiveEnergy(maxReceive - pushed, simulate);
+                FluidStack contents = prop.getContents();
+                
+                if(contents == null || contents.amount <= 0)
+                {
+                    empty = true;
+                } else
+                {
+                    fluids[n++] = contents.getFluid();
+                    tanksByFluid.computeIfAbsent(contents.getFluid(), k -> new BitSet()).set(slot);
+                }
             }
+            
+            tankFluids[slot] = n == 0 ? NO_FLUIDS : Arrays.copyOf(fluids, n);
+            emptyTanks.set(slot, empty);
         }
         
-        if(pushed != 0 && !simulate) this.markDirty();
-        return pushed;
+        staleTanks.clear();
     }
     
-    @Override
-    public int extractEnergy(int maxExtract, boolean simulate)
+    void updateRoutes()
     {
-        int pulled = 0;
+        if(routeOreGen != OreDictCache.getGeneration())
+        {
+            routeOreGen = OreDictCache.getGeneration();
+            staleRoutes.set(0, slotStacks.length);
+        }
+        
+        for(int slot = staleRoutes.nextSetBit(0); slot >= 0; slot = staleRoutes.nextSetBit(slot + 1))
+        {
+            updateRoute(slot);
+        }
+        
+        staleRoutes.clear();
+    }
     
-        Iterator<ProxyEntry<IEnergyStorage>> eIter = energyItems.iterator();
+    private void updateRoute(int slot)
+    {
+        ICrate crate = slotCrates[slot];
+        ItemKey key = null;
+        int[] ores = OreDictCache.NO_ORES;
+        boolean empty = false;
+        
+        if(crate != null)
+        {
+            if(!crate.getRefItem().isEmpty())
+            {
+                key = crate.getRefKey();
+                if(crate.isOreDict()) ores = OreDictCache.getOreIds(crate.getRefItem());
+            } else
+            {
+                // Barrels holding a fluid can't take items until they're drained
+                empty = !crate.isLocked() && !(crate instanceof IBarrel && ((IBarrel)crate).getRefFluid() != null);
+            }
+        }
+        
+        if(!Objects.equals(key, routeKeys[slot]))
+        {
+            if(routeKeys[slot] != null) removeRoute(routesByItem, routeKeys[slot], slot);
+            if(key != null) routesByItem.computeIfAbsent(key, k -> new BitSet()).set(slot);
+            routeKeys[slot] = key;
+        }
         
-        while(eIter.hasNext() && pulled < maxExtract)
+        if(ores != routeOres[slot])
         {
-            ProxyEntry<IEnergyStorage> eStore = eIter.next();
+            for(int ore : routeOres[slot]) removeRoute(routesByOre, ore, slot);
+            for(int ore : ores) routesByOre.computeIfAbsent(ore, k -> new BitSet()).set(slot);
+            routeOres[slot] = ores;
+        }
+        
+        emptyCrates.set(slot, empty);
+    }
+    
+    private static <K> void removeRoute(Map<K, BitSet> routes, K key, int slot)
+    {
+        BitSet slots = routes.get(key);
+        if(slots == null) return;
+        
+        slots.clear(slot);
+        if(slots.isEmpty()) routes.remove(key);
+    }
+    
+    /**
+     * Inserts the stack into whichever nested containers should take it instead of probing every proxy slot.
+     * Crates already holding the item are tried first, then ore dictionary crates sharing an ore name,
+     * then empty crates and lastly any other nested inventories.
+     * @return the remainder that couldn't be inserted
+     */
+    @Nonnull
+    public ItemStack insertAnywhere(@Nonnull ItemStack stack, boolean simulate)
+    {
+        if(stack.isEmpty())
+        {
+            return stack;
+        }
+        
+        updateRoutes();
+        ItemStack remaining = stack;
+        
+        BitSet slots = routesByItem.get(ItemKey.of(stack));
+        if(slots != null) remaining = insertInto(slots, remaining, simulate);
+        
+        if(!remaining.isEmpty() && !routesByOre.isEmpty())
+        {
+            for(int ore : OreDictCache.getOreIds(remaining))
+            {
+                slots = routesByOre.get(ore);
+                if(slots != null) remaining = insertInto(slots, remaining, simulate);
+                if(remaining.isEmpty()) break;
+            }
+        }
+        
+        if(!remaining.isEmpty()) remaining = insertInto(emptyCrates, remaining, simulate);
+        
+        for(int slot = 0; slot < slotItems.length && !remaining.isEmpty(); slot++)
+        {
+            IItemHandler handler = slotItems[slot];
+            if(handler == null || slotCrates[slot] != null) continue;
+            
+            int prev = remaining.getCount();
+            
+            for(int i = 0; i < handler.getSlots() && !remaining.isEmpty(); i++)
+            {
+                remaining = handler.insertItem(i, remaining, simulate);
+            }
             
-            if(eStore.handler.canExtract())
+            if(!simulate && remaining.getCount() != prev)
             {
-                pulled += eStore.handler.extractEnergy(maxExtract - pulled, simulate);
+                markSlotStale(slot);
+                shipInvo.markSlotChanged(slot);
             }
         }
         
-        if(pulled != 0 && !simulate) this.markDirty();
-        return pulled;
+        if(!simulate && remaining.getCount() != stack.getCount()) this.markDirty();
+        return remaining;
+    }
+    
+    ItemStack insertInto(BitSet slots, ItemStack stack, boolean simulate)
+    {
+        ItemStack remaining = stack;
+        
+        // The index is only brought up to date at the start of insertAnywhere() so marking slots here doesn't disturb the loop
+        for(int slot = slots.nextSetBit(0); slot >= 0 && !remaining.isEmpty(); slot = slots.nextSetBit(slot + 1))
+        {
+            remaining = slotCrates[slot].insertItem(0, remaining, simulate);
+            if(!simulate) markSlotStale(slot);
+        }
+        
+        return remaining;
     }
     
     @Override
-    public int getEnergyStored()
+    public void onInventoryChanged(@Nonnull IInventory invBasic)
     {
-        int total = 0;
+        if(skipRefresh) return;
         
-        for(ProxyEntry<IEnergyStorage> eStore : energyItems)
+        // Most changes were already reported per slot. This catches the ones that weren't (clear(), decrStackSize(), etc.)
+        boolean changed = false;
+        
+        for(int i = 0; i < slotStacks.length; i++)
         {
-            total += eStore.handler.getEnergyStored();
+            changed |= refreshSlot(i);
         }
         
-        return total;
+        if(changed) rebuildIndexes();
+    }
+    
+    /**
+     * Alternative item view with one slot per distinct item held in the nested crates. Created on first use
+     */
+    public ShippingAggregateView getAggregateView()
+    {
+        if(aggregateView == null) aggregateView = new ShippingAggregateView(this);
+        return aggregateView;
+    }
+    
+    int getInventorySize()
+    {
+        return slotStacks.length;
+    }
+    
+    // Only valid after updateRoutes()
+    @Nullable
+    ItemKey getRouteKey(int slot)
+    {
+        return routeKeys[slot];
+    }
+    
+    @Nullable
+    BitSet getRouteSlots(ItemKey key)
+    {
+        return routesByItem.get(key);
+    }
+    
+    @Nullable
+    ICrate getCrate(int slot)
+    {
+        return slotCrates[slot];
+    }
+    
+    @Nullable
+    IItemHandler getItemHandler(int slot)
+    {
+        return slotItems[slot];
+    }
+    
+    void onNestedChanged(int slot)
+    {
+        markSlotStale(slot);
+        shipInvo.markSlotChanged(slot);
+        markDirty();
+    }
+    
+    public boolean hasEnergyStorage()
+    {
+        return energyItems.length > 0;
+    }
+    
+    private void updateEnergyTotals()
+    {
+        if(!energyStale)
+        {
+            return;
+        }
+        
+        energyStale = false;
+        energyStored = 0;
+        energyCapacity = 0;
+        
+        for(IEnergyStorage eStore : energyItems)
+        {
+            energyStored += eStore.getEnergyStored();
+            energyCapacity += eStore.getMaxEnergyStored();
+        }
     }
     
     @Override
-    public int getMaxEnergyStored()
+    public int receiveEnergy(int maxReceive, boolean simulate)
     {
-        int total = 0;
+        updateEnergyTotals();
         
-        for(ProxyEntry<IEnergyStorage> eStore : energyItems)
+        if(maxReceive <= 0 || !canReceive())
         {
-            total += eStore.handler.getMaxEnergyStored();
+            return 0;
         }
         
-        return total;
+        int pushed = transferEnergy(maxReceive, simulate, true);
+        
+        if(pushed != 0 && !simulate)
+        {
+            energyStored = Math.min(energyStored + pushed, energyCapacity);
+            tileShip.resetEnergyBackoff(); // Something new to offer the neighbours
+            this.markDirty();
+        }
+        
+        return pushed;
     }
     
     @Override
-    public boolean canExtract()
+    public int extractEnergy(int maxExtract, boolean simulate)
     {
-        for(ProxyEntry<IEnergyStorage> eStore : energyItems)
+        updateEnergyTotals();
+        
+        // The running total isn't trusted to refuse with. Batteries can charge themselves without going through the proxy
+        if(maxExtract <= 0 || !canExtract())
         {
-            if(eStore.handler.canExtract())
+            return 0;
+        }
+        
+        int pulled = transferEnergy(maxExtract, simulate, false);
+        
+        if(pulled != 0 && !simulate)
+        {
+            energyStored = Math.max(energyStored - pulled, 0);
+            this.markDirty();
+        }
+        
+        return pulled;
+    }
+    
+    /**
+     * Moves energy into or out of the batteries. Unbalanced transfers simply go through them in order. Balanced ones are planned
+     * by simulating first: every battery that can take part is offered an equal share and whatever one can't take rolls over to
+     * the ones after it, then anything still left is offered to each battery with room. The plan is then carried out with one call
+     * per battery, so a real transfer moves exactly what simulating the same amount reported.
+     */
+    private int transferEnergy(int amount, boolean simulate, boolean receive)
+    {
+        IEnergyStorage[] eItems = energyItems;
+        int[] eSlots = energySlots;
+        int moved = 0;
+        
+        if(!BdsmConfig.balancedShippingEnergy)
+        {
+            for(int i = 0; i < eItems.length && moved < amount; i++)
             {
-                return true;
+                int tmp = transferEnergy(eItems[i], amount - moved, simulate, receive);
+                moved += tmp;
+                if(!simulate && tmp > 0) shipInvo.markSlotDirty(eSlots[i]);
             }
+            
+            return moved;
+        }
+        
+        int[] planned = new int[eItems.length];
+        int eligible = 0;
+        
+        for(IEnergyStorage eStore : eItems)
+        {
+            if(receive ? eStore.canReceive() : eStore.canExtract()) eligible++;
+        }
+        
+        for(int i = 0; i < eItems.length && moved < amount; i++)
+        {
+            if(!(receive ? eItems[i].canReceive() : eItems[i].canExtract())) continue;
+            
+            planned[i] = transferEnergy(eItems[i], getShare(amount - moved, eligible--), true, receive);
+            moved += planned[i];
+        }
+        
+        // Asked as one transfer covering both passes so per call rate limits work out the same as the real call below
+        for(int i = 0; i < eItems.length && moved < amount; i++)
+        {
+            int total = transferEnergy(eItems[i], planned[i] + amount - moved, true, receive);
+            if(total <= planned[i]) continue;
+            
+            moved += total - planned[i];
+            planned[i] = total;
+        }
+        
+        if(simulate)
+        {
+            return moved;
+        }
+        
+        moved = 0;
+        
+        for(int i = 0; i < eItems.length; i++)
+        {
+            if(planned[i] <= 0) continue;
+            
+            moved += transferEnergy(eItems[i], planned[i], false, receive);
+            shipInvo.markSlotDirty(eSlots[i]);
+        }
+        
+        return moved;
+    }
+    
+    private static int transferEnergy(IEnergyStorage eStore, int amount, boolean simulate, boolean receive)
+    {
+        if(receive)
+        {
+            return eStore.canReceive() ? eStore.receiveEnergy(amount, simulate) : 0;
+        }
+        
+        return eStore.canExtract() ? eStore.extractEnergy(amount, simulate) : 0;
+    }
+    
+    /**
+     * How much of the remaining transfer the next battery is offered on the first pass of a balanced transfer. Each of the batteries left gets an equal share.
+     */
+    private static int getShare(int remaining, int batteriesLeft)
+    {
+        if(batteriesLeft <= 1)
+        {
+            return remaining;
+        }
+        
+        return (int)(((long)remaining + batteriesLeft - 1) / batteriesLeft);
+    }
+    
+    @Override
+    public int getEnergyStored()
+    {
+        updateEnergyTotals();
+        return (int)Math.min(energyStored, Integer.MAX_VALUE);
+    }
+    
+    @Override
+    public int getMaxEnergyStored()
+    {
+        updateEnergyTotals();
+        return (int)Math.min(energyCapacity, Integer.MAX_VALUE);
+    }
+    
+    // Asked of the batteries every time. Whether one of them accepts or gives energy can change without its slot changing
+    @Override
+    public boolean canExtract()
+    {
+        for(IEnergyStorage eStore : energyItems)
+        {
+            if(eStore.canExtract()) return true;
         }
         
         return false;
@@ -176,12 +657,9 @@ public class ShippingProxyWrapper implements IItemHandler, IFluidHandler, IEnerg
     @Override
     public boolean canReceive()
     {
-        for(ProxyEntry<IEnergyStorage> eStore : energyItems)
+        for(IEnergyStorage eStore : energyItems)
         {
-            if(eStore.handler.canReceive())
-            {
-                return true;
-            }
+            if(eStore.canReceive()) return true;
         }
         
         return false;
@@ -190,230 +668,236 @@ public class ShippingProxyWrapper implements IItemHandler, IFluidHandler, IEnerg
     @Override
     public IFluidTankProperties[] getTankProperties()
     {
+        // Cleared whenever a nested tank is filled, drained or swapped out
+        if(tankProperties != null)
+        {
+            return tankProperties;
+        }
+        
         List<IFluidTankProperties> tanks = new ArrayList<>();
         
-        for(ProxyEntry<IFluidHandlerItem> eStore : fluidItems)
+        for(IFluidHandlerItem eStore : fluidItems)
         {
-            Collections.addAll(tanks, eStore.handler.getTankProperties());
+            Collections.addAll(tanks, eStore.getTankProperties());
         }
         
-        return tanks.toArray(new IFluidTankProperties[0]);
+        tankProperties = tanks.toArray(new IFluidTankProperties[0]);
+        return tankProperties;
     }
     
     @Override
     public int fill(FluidStack resource, boolean doFill)
     {
+        if(resource == null || resource.amount <= 0)
+        {
+            return 0;
+        }
+        
+        updateTanks();
         FluidStack remaining = resource.copy();
         
-        Iterator<ProxyEntry<IFluidHandlerItem>> eIter = fluidItems.iterator();
+        // Topping up tanks that already hold the fluid comes before starting new ones
+        BitSet slots = tanksByFluid.get(resource.getFluid());
+        if(slots != null) fillInto(slots, remaining, doFill);
+        if(remaining.amount > 0) fillInto(emptyTanks, remaining, doFill);
         
-        while(eIter.hasNext() && remaining.amount > 0)
+        int filled = resource.amount - remaining.amount;
+        if(doFill && filled > 0) this.markDirty();
+        return filled;
+    }
+    
+    private void fillInto(BitSet slots, FluidStack remaining, boolean doFill)
+    {
+        // The index is only brought up to date at the start of fill() so marking slots here doesn't disturb the loop
+        for(int slot = slots.nextSetBit(0); slot >= 0 && remaining.amount > 0; slot = slots.nextSetBit(slot + 1))
         {
-            ProxyEntry<IFluidHandlerItem> eStore = eIter.next();
+            IFluidHandlerItem eStore = slotFluids[slot];
+            if(eStore == null) continue;
             
-            int tmp = eStore.handler.fill(remaining, doFill);
+            int tmp = eStore.fill(remaining, doFill);
             remaining.amount -= tmp;
             
             if(doFill && tmp > 0)
             {
-                this.shipInvo.setSlotWithoutNotice(eStore.slot, eStore.handler.getContainer());
+                markSlotStale(slot); // Barrels only take items while they hold no fluid
+                this.shipInvo.setSlotWithoutNotice(slot, eStore.getContainer());
             }
         }
+    }
+    
+    @Nullable
+    @Override
+    public FluidStack drain(FluidStack resource, boolean doDrain)
+    {
+        if(resource == null || resource.amount <= 0)
+        {
+            return null;
+        }
         
-        this.markDirty();
+        updateTanks();
+        BitSet slots = tanksByFluid.get(resource.getFluid());
+        if(slots == null) return null;
         
-        return resource.amount - remaining.amount;
+        FluidStack pulled = drainFrom(slots, 0, resource.copy(), doDrain);
+        if(doDrain && pulled != null) this.markDirty();
+        return pulled;
     }
     
     @Nullable
     @Override
-    public FluidStack drain(FluidStack resource, boolean doDrain)
+    public FluidStack drain(int maxDrain, boolean doDrain)
     {
-        FluidStack requesting = resource.copy();
-        FluidStack pulled = null;
+        if(maxDrain <= 0)
+        {
+            return null;
+        }
         
-        Iterator<ProxyEntry<IFluidHandlerItem>> eIter = fluidItems.iterator();
+        updateTanks();
+        IFluidHandlerItem[] fItems = fluidItems;
+        int[] fSlots = fluidSlots;
+        FluidStack pulled = null;
+        int firstSlot = -1;
         
-        while(eIter.hasNext() && requesting.amount > 0)
+        // Whichever tank gives something first decides the fluid
+        for(int i = 0; i < fItems.length && pulled == null; i++)
         {
-            ProxyEntry<IFluidHandlerItem> eStore = eIter.next();
+            if(tankFluids[fSlots[i]].length == 0) continue;
             
-            FluidStack tmp = eStore.handler.drain(requesting, false);
+            FluidStack tmp = fItems[i].drain(maxDrain, doDrain);
+            if(tmp == null || tmp.amount <= 0) continue;
             
-            if(tmp != null && tmp.isFluidEqual(requesting))
+            pulled = tmp;
+            firstSlot = fSlots[i];
+            
+            if(doDrain)
             {
-                eStore.handler.drain(requesting, doDrain);
-                
-                if(pulled == null)
-                {
-                    pulled = tmp;
-                } else
-                {
-                    pulled.amount += tmp.amount;
-                }
-                
-                requesting.amount -= tmp.amount;
-                
-                if(doDrain)
-                {
-                    this.shipInvo.setSlotWithoutNotice(eStore.slot, eStore.handler.getContainer());
-                }
+                markSlotStale(firstSlot);
+                this.shipInvo.setSlotWithoutNotice(firstSlot, fItems[i].getContainer());
             }
         }
         
-        this.markDirty();
+        if(pulled == null)
+        {
+            return null;
+        }
+        
+        BitSet slots = tanksByFluid.get(pulled.getFluid());
+        
+        if(pulled.amount < maxDrain && slots != null)
+        {
+            FluidStack requesting = pulled.copy();
+            requesting.amount = maxDrain - pulled.amount;
+            
+            FluidStack more = drainFrom(slots, firstSlot + 1, requesting, doDrain);
+            if(more != null) pulled.amount += more.amount;
+        }
         
+        if(doDrain) this.markDirty();
         return pulled;
     }
     
+    /**
+     * Drains the requested fluid from the indexed tanks starting at the given inventory slot. Each tank is only drained once
+     */
     @Nullable
-    @Override
-    public FluidStack drain(int maxDrain, boolean doDrain)
+    private FluidStack drainFrom(BitSet slots, int fromSlot, FluidStack requesting, boolean doDrain)
     {
-        int requesting = maxDrain;
         FluidStack pulled = null;
         
-        Iterator<ProxyEntry<IFluidHandlerItem>> eIter = fluidItems.iterator();
-        
-        while(eIter.hasNext() && requesting > 0)
+        for(int slot = slots.nextSetBit(fromSlot); slot >= 0 && requesting.amount > 0; slot = slots.nextSetBit(slot + 1))
         {
-            ProxyEntry<IFluidHandlerItem> eStore = eIter.next();
+            IFluidHandlerItem eStore = slotFluids[slot];
+            if(eStore == null) continue;
             
-            FluidStack tmp = eStore.handler.drain(requesting, false);
+            FluidStack tmp = eStore.drain(requesting, doDrain);
+            if(tmp == null || tmp.amount <= 0 || !tmp.isFluidEqual(requesting)) continue;
             
-            if(tmp != null && (pulled == null || tmp.isFluidEqual(pulled)))
+            if(pulled == null)
             {
-                eStore.handler.drain(requesting, doDrain);
-                
-                if(pulled == null)
-                {
-                    pulled = tmp;
-                } else
-                {
-                    pulled.amount += tmp.amount;
-                }
-                
-                requesting -= tmp.amount;
-                
-                if(doDrain)
-                {
-                    this.shipInvo.setSlotWithoutNotice(eStore.slot, eStore.handler.getContainer());
-                }
+                pulled = tmp;
+            } else
+            {
+                pulled.amount += tmp.amount;
+            }
+            
+            requesting.amount -= tmp.amount;
+            
+            if(doDrain)
+            {
+                markSlotStale(slot);
+                this.shipInvo.setSlotWithoutNotice(slot, eStore.getContainer());
             }
         }
         
-        this.markDirty();
-        
         return pulled;
     }
     
     @Override
     public int getSlots()
     {
-        int total = 0;
-        
-        for(ProxyEntry<IItemHandler> eStore : invoItems)
-        {
-            total += eStore.handler.getSlots();
-        }
-        
-        return total;
+        return slotOffsets[itemHandlers.length] + 1;
     }
     
     @Nonnull
     @Override
     public ItemStack getStackInSlot(int slot)
     {
-        int index = 0;
-        
-        for(ProxyEntry<IItemHandler> eStore : invoItems)
-        {
-            if(slot >= index && slot < index + eStore.handler.getSlots())
-            {
-                return eStore.handler.getStackInSlot(slot - index);
-            }
-            
-            index += eStore.handler.getSlots();
-        }
-        
-        return ItemStack.EMPTY;
+        int idx = getHandlerIndex(slot - 1);
+        return idx < 0 ? ItemStack.EMPTY : itemHandlers[idx].getStackInSlot(slot - 1 - slotOffsets[idx]);
     }
     
     @Nonnull
     @Override
     public ItemStack insertItem(int slot, @Nonnull ItemStack stack, boolean simulate)
     {
-        int index = 0;
+        if(slot == ROUTING_SLOT)
+        {
+            return insertAnywhere(stack, simulate);
+        }
+        
+        int idx = getHandlerIndex(slot - 1);
+        if(idx < 0) return stack;
         
-        for(ProxyEntry<IItemHandler> eStore : invoItems)
+        ItemStack result = itemHandlers[idx].insertItem(slot - 1 - slotOffsets[idx], stack, simulate);
+        
+        if(!simulate)
         {
-            if(slot >= index && slot < index + eStore.handler.getSlots())
-            {
-                ItemStack result = eStore.handler.insertItem(slot - index, stack, simulate);
-                if(!simulate) this.markDirty();
-                return result;
-            }
-            
-            index += eStore.handler.getSlots();
+            markSlotStale(handlerSlots[idx]);
+            shipInvo.markSlotChanged(handlerSlots[idx]);
+            this.markDirty();
         }
         
-        return stack;
+        return result;
     }
     
     @Nonnull
     @Override
     public ItemStack extractItem(int slot, int amount, boolean simulate)
     {
-        int index = 0;
+        int idx = getHandlerIndex(slot - 1);
+        if(idx < 0) return ItemStack.EMPTY;
+        
+        ItemStack result = itemHandlers[idx].extractItem(slot - 1 - slotOffsets[idx], amount, simulate);
         
-        for(ProxyEntry<IItemHandler> eStore : invoItems)
+        if(!simulate)
         {
-            if(slot >= index && slot < index + eStore.handler.getSlots())
-            {
-                ItemStack result = eStore.handler.extractItem(slot - index, amount, simulate);
-                if(!simulate) this.markDirty();
-                return result;
-            }
-            
-            index += eStore.handler.getSlots();
+            markSlotStale(handlerSlots[idx]);
+            shipInvo.markSlotChanged(handlerSlots[idx]);
+            this.markDirty();
         }
         
-        return ItemStack.EMPTY;
+        return result;
     }
     
     @Override
     public int getSlotLimit(int slot)
     {
-        int index = 0;
-        
-        for(ProxyEntry<IItemHandler> eStore : invoItems)
+        if(slot == ROUTING_SLOT)
         {
-            if(slot >= index && slot < index + eStore.handler.getSlots())
-            {
-                return eStore.handler.getSlotLimit(slot - index);
-            }
-            
-            index += eStore.handler.getSlots();
+            return 64;
         }
         
-        return 0;
-    }
-    
-    private class ProxyEntry<T> implements Comparable<ProxyEntry<T>>
-    {
-        private final int slot;
-        private final T handler;
-        
-        private ProxyEntry(int slot, @Nonnull T handler)
-        {
-            this.slot = slot;
-            this.handler = handler;
-        }
-        
-        @Override
-        public int compareTo(@Nonnull ProxyEntry<T> o) // Helps keeps these in slot order
-        {
-            return Integer.compare(this.slot, o.slot);
-        }
+        int idx = getHandlerIndex(slot - 1);
+        return idx < 0 ? 0 : itemHandlers[idx].getSlotLimit(slot - 1 - slotOffsets[idx]);
     }
 }
@@ -76,6 +76,18 @@ public class ItemBarrel extends ItemBlock implements IBdsmColorItem
     {
         CapabilityProviderBarrel capBarrel = new CapabilityProviderBarrel(stackCap, maxCap).setParentStack(stack);
         if(nbt != null) capBarrel.deserializeNBT(nbt);
+        
+        // Older versions also mirrored the capability into the stack tag. The capability is the only saved copy now.
+        // Dropped from a copy of the tag so the NBT the stack is being loaded from is left alone
+        NBTTagCompound stackTag = stack.getTagCompound();
+        
+        if(stackTag != null && stackTag.hasKey("barrelCap"))
+        {
+            stackTag = stackTag.copy();
+            stackTag.removeTag("barrelCap");
+            stack.setTagCompound(stackTag.isEmpty() ? null : stackTag);
+        }
+        
         return capBarrel;
     }
     
@@ -108,8 +120,12 @@ public class ItemBarrel extends ItemBlock implements IBdsmColorItem
         CapabilityBarrel barrel = (CapabilityBarrel)stack.getCapability(BdsmCapabilies.BARREL_CAP, null);
         assert barrel != null;
         
-        stack.setTagInfo("barrelCap", barrel.serializeNBT());
-        return super.getNBTShareTag(stack);
+        // Capabilities aren't synced so the client gets a copy in the share tag. Built fresh so the stack's own tag stays untouched
+        NBTTagCompound shareTag = new NBTTagCompound();
+        NBTTagCompound stackTag = super.getNBTShareTag(stack);
+        if(stackTag != null) for(String key : stackTag.getKeySet()) shareTag.setTag(key, stackTag.getTag(key));
+        shareTag.setTag("barrelCap", barrel.serializeNBT());
+        return shareTag;
     }
     
     @Override
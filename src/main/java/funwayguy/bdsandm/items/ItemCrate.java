@@ -76,6 +76,18 @@ public class ItemCrate extends ItemBlock implements IBdsmColorItem
     {
         CapabilityProviderCrate capProvCrate = new CapabilityProviderCrate(stackCap, maxCap).setParentStack(stack);
         if(nbt != null) capProvCrate.deserializeNBT(nbt);
+        
+        // Older versions also mirrored the capability into the stack tag. The capability is the only saved copy now.
+        // Dropped from a copy of the tag so the NBT the stack is being loaded from is left alone
+        NBTTagCompound stackTag = stack.getTagCompound();
+        
+        if(stackTag != null && stackTag.hasKey("crateCap"))
+        {
+            stackTag = stackTag.copy();
+            stackTag.removeTag("crateCap");
+            stack.setTagCompound(stackTag.isEmpty() ? null : stackTag);
+        }
+        
         return capProvCrate;
     }
     
@@ -104,8 +116,12 @@ public class ItemCrate extends ItemBlock implements IBdsmColorItem
         ICrate crate = stack.getCapability(BdsmCapabilies.CRATE_CAP, null);
         assert crate != null;
         
-        stack.setTagInfo("crateCap", crate.serializeNBT());
-        return super.getNBTShareTag(stack);
+        // Capabilities aren't synced so the client gets a copy in the share tag. Built fresh so the stack's own tag stays untouched
+        NBTTagCompound shareTag = new NBTTagCompound();
+        NBTTagCompound stackTag = super.getNBTShareTag(stack);
+        if(stackTag != null) for(String key : stackTag.getKeySet()) shareTag.setTag(key, stackTag.getTag(key));
+        shareTag.setTag("crateCap", crate.serializeNBT());
+        return shareTag;
     }
     
     @Override
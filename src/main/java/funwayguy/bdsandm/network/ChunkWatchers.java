@@ -0,0 +1,68 @@
+package funwayguy.bdsandm.network;
+
+import funwayguy.bdsandm.core.BdsmConfig;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.Packet;
+import net.minecraft.server.management.PlayerChunkMapEntry;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.world.WorldServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Routes tile updates to the players tracking the tile's chunk instead of everyone inside a fixed radius.
+ */
+public class ChunkWatchers
+{
+    public static void sendToWatchers(TileEntity tile, Packet<?> packet)
+    {
+        if(!(tile.getWorld() instanceof WorldServer))
+        {
+            return;
+        }
+        
+        PlayerChunkMapEntry entry = ((WorldServer)tile.getWorld()).getPlayerChunkMap().getEntry(tile.getPos().getX() >> 4, tile.getPos().getZ() >> 4);
+        if(entry != null) entry.sendPacket(packet); // Does nothing until the chunk itself has been sent
+    }
+    
+    public static List<EntityPlayerMP> getWatchers(TileEntity tile)
+    {
+        if(!(tile.getWorld() instanceof WorldServer))
+        {
+            return Collections.emptyList();
+        }
+        
+        PlayerChunkMapEntry entry = ((WorldServer)tile.getWorld()).getPlayerChunkMap().getEntry(tile.getPos().getX() >> 4, tile.getPos().getZ() >> 4);
+        
+        if(entry == null || !entry.isSentToPlayers())
+        {
+            return Collections.emptyList();
+        }
+        
+        // The entry doesn't hand out its player list. Visiting every one of them is the closest thing
+        List<EntityPlayerMP> watchers = new ArrayList<>();
+        entry.hasPlayerMatching(player -> {
+            watchers.add(player);
+            return false;
+        });
+        
+        return watchers;
+    }
+    
+    public static boolean isWatching(TileEntity tile, EntityPlayerMP player)
+    {
+        return tile.getWorld() instanceof WorldServer && player.world == tile.getWorld() && ((WorldServer)tile.getWorld()).getPlayerChunkMap().isPlayerWatchingChunk(player, tile.getPos().getX() >> 4, tile.getPos().getZ() >> 4);
+    }
+    
+    /**
+     * Whether the player is close enough to read the tile's label
+     * @see BdsmConfig#labelSyncRange
+     */
+    public static boolean isInLabelRange(TileEntity tile, EntityPlayerMP player)
+    {
+        int range = BdsmConfig.labelSyncRange;
+        return range <= 0 || player.getDistanceSqToCenter(tile.getPos()) <= range * range;
+    }
+}
@@ -0,0 +1,81 @@
+package funwayguy.bdsandm.network;
+
+import funwayguy.bdsandm.blocks.tiles.ISyncedTile;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.client.Minecraft;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+import net.minecraftforge.fml.relauncher.Side;
+import net.minecraftforge.fml.relauncher.SideOnly;
+
+/**
+ * Count-only update for a crate or barrel. Sent instead of the full tile NBT when nothing else changed.
+ */
+public class PacketCrateCount implements IMessage
+{
+    private long pos;
+    private int count;
+    
+    @SuppressWarnings("unused")
+    public PacketCrateCount()
+    {
+    }
+    
+    public PacketCrateCount(BlockPos pos, int count)
+    {
+        this.pos = pos.toLong();
+        this.count = count;
+    }
+    
+    @Override
+    public void fromBytes(ByteBuf buf)
+    {
+        pos = buf.readLong();
+        count = ByteBufUtils.readVarInt(buf, 5);
+    }
+    
+    @Override
+    public void toBytes(ByteBuf buf)
+    {
+        buf.writeLong(pos);
+        ByteBufUtils.writeVarInt(buf, count, 5);
+    }
+    
+    // Only here so the dedicated server knows the discriminator. Clients never send this
+    public static class ServerHandler implements IMessageHandler<PacketCrateCount,IMessage>
+    {
+        @Override
+        public IMessage onMessage(PacketCrateCount message, MessageContext ctx)
+        {
+            return null;
+        }
+    }
+    
+    @SideOnly(Side.CLIENT)
+    public static class ClientHandler implements IMessageHandler<PacketCrateCount,IMessage>
+    {
+        @Override
+        public IMessage onMessage(PacketCrateCount message, MessageContext ctx)
+        {
+            Minecraft.getMinecraft().addScheduledTask(() -> {
+                World world = Minecraft.getMinecraft().world;
+                BlockPos pos = BlockPos.fromLong(message.pos);
+                
+                if(world == null || !world.isBlockLoaded(pos))
+                {
+                    return;
+                }
+                
+                TileEntity tile = world.getTileEntity(pos);
+                if(tile instanceof ISyncedTile) ((ISyncedTile)tile).readSyncedCount(message.count);
+            });
+            
+            return null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package funwayguy.bdsandm.network;
+
+import funwayguy.bdsandm.inventory.ContainerShipping;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.client.Minecraft;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+import net.minecraftforge.fml.relauncher.Side;
+import net.minecraftforge.fml.relauncher.SideOnly;
+
+/**
+ * Amount-only update for a container sitting in an open shipping container GUI. Sent instead of the full stack when only the
+ * amount held by a crate, barrel, battery or tank moved.
+ */
+public class PacketSlotCount implements IMessage
+{
+    public static final int TYPE_COUNT = 0;
+    public static final int TYPE_ENERGY = 1;
+    public static final int TYPE_FLUID = 2;
+    
+    private int windowId;
+    private int slot;
+    private int type;
+    private int size;
+    private int count;
+    
+    @SuppressWarnings("unused")
+    public PacketSlotCount()
+    {
+    }
+    
+    public PacketSlotCount(int windowId, int slot, int type, int size, int count)
+    {
+        this.windowId = windowId;
+        this.slot = slot;
+        this.type = type;
+        this.size = size;
+        this.count = count;
+    }
+    
+    @Override
+    public void fromBytes(ByteBuf buf)
+    {
+        windowId = buf.readUnsignedByte();
+        slot = buf.readUnsignedByte();
+        type = buf.readUnsignedByte();
+        size = buf.readUnsignedByte();
+        count = ByteBufUtils.readVarInt(buf, 5);
+    }
+    
+    @Override
+    public void toBytes(ByteBuf buf)
+    {
+        buf.writeByte(windowId);
+        buf.writeByte(slot);
+        buf.writeByte(type);
+        buf.writeByte(size);
+        ByteBufUtils.writeVarInt(buf, count, 5);
+    }
+    
+    // Only here so the dedicated server knows the discriminator. Clients never send this
+    public static class ServerHandler implements IMessageHandler<PacketSlotCount,IMessage>
+    {
+        @Override
+        public IMessage onMessage(PacketSlotCount message, MessageContext ctx)
+        {
+            return null;
+        }
+    }
+    
+    @SideOnly(Side.CLIENT)
+    public static class ClientHandler implements IMessageHandler<PacketSlotCount,IMessage>
+    {
+        @Override
+        public IMessage onMessage(PacketSlotCount message, MessageContext ctx)
+        {
+            Minecraft.getMinecraft().addScheduledTask(() -> {
+                EntityPlayer player = Minecraft.getMinecraft().player;
+                
+                if(player == null || player.openContainer == null || player.openContainer.windowId != message.windowId || !(player.openContainer instanceof ContainerShipping))
+                {
+                    return;
+                }
+                
+                ((ContainerShipping)player.openContainer).readSlotCount(message.slot, message.type, message.size, message.count);
+            });
+            
+            return null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package funwayguy.bdsandm.utils;
+
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+/**
+ * Immutable identity of a reference stack (item, damage and NBT) with the NBT hash computed up front.
+ * Offered stacks are rejected on the cheap fields (item, damage, tag size) before falling back on the full vanilla comparison.
+ * The hash is only used for map lookups between keys.
+ * The wrapped stack must not be modified after the key is made.
+ */
+public final class ItemKey
+{
+    private final ItemStack stack;
+    private final Item item;
+    private final int meta;
+    @Nullable
+    private final NBTTagCompound tag;
+    private final int tagHash;
+    
+    private ItemKey(@Nonnull ItemStack stack)
+    {
+        this.stack = stack;
+        this.item = stack.getItem();
+        this.meta = stack.getItemDamage();
+        this.tag = stack.getTagCompound();
+        this.tagHash = tag == null ? 0 : tag.hashCode();
+    }
+    
+    public static ItemKey of(@Nonnull ItemStack stack)
+    {
+        return new ItemKey(stack);
+    }
+    
+    @Nonnull
+    public ItemStack getStack()
+    {
+        return stack;
+    }
+    
+    /**
+     * Same result as {@link ItemStack#areItemsEqual(ItemStack, ItemStack)} against the keyed stack
+     */
+    public boolean matchesItem(@Nonnull ItemStack other)
+    {
+        return other.getItem() == item && ItemStack.areItemsEqual(stack, other);
+    }
+    
+    /**
+     * Same result as {@link ItemStack#areItemStackTagsEqual(ItemStack, ItemStack)} against the keyed stack
+     */
+    public boolean matchesTag(@Nonnull ItemStack other)
+    {
+        if(stack.isEmpty() || other.isEmpty())
+        {
+            return stack.isEmpty() && other.isEmpty();
+        }
+        
+        NBTTagCompound otherTag = other.getTagCompound();
+        
+        if(tag == null)
+        {
+            if(otherTag != null) return false;
+        } else if(otherTag == null || (otherTag != tag && tag.getSize() != otherTag.getSize()))
+        {
+            return false;
+        }
+        
+        // Hashing the offered tag would walk it just as far as comparing it. One full check covers the tag and capability data
+        return ItemStack.areItemStackTagsEqual(stack, other);
+    }
+    
+    public boolean matches(@Nonnull ItemStack other)
+    {
+        return matchesItem(other) && matchesTag(other);
+    }
+    
+    @Override
+    public boolean equals(Object obj)
+    {
+        if(this == obj)
+        {
+            return true;
+        } else if(!(obj instanceof ItemKey))
+        {
+            return false;
+        }
+        
+        ItemKey key = (ItemKey)obj;
+        return item == key.item && meta == key.meta && tagHash == key.tagHash && Objects.equals(tag, key.tag);
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return (System.identityHashCode(item) * 31 + meta) * 31 + tagHash;
+    }
+}
@@ -0,0 +1,115 @@
+package funwayguy.bdsandm.utils;
+
+import funwayguy.bdsandm.core.BdsmConfig;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraftforge.fml.common.Mod.EventBusSubscriber;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.oredict.OreDictionary;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared item/meta to ore ID table for ore dictionary merging. Entries are built on first use with the
+ * ore dictionary blacklist already applied, so checking two stacks is a sorted int array intersection.
+ */
+@EventBusSubscriber
+public class OreDictCache
+{
+    public static final int[] NO_ORES = new int[0];
+    
+    private static final Map<Long, int[]> oreIds = new ConcurrentHashMap<>();
+    private static volatile int generation = 0;
+    
+    /**
+     * Sorted ore IDs the stack's item and damage are registered under, minus blacklisted ore names.
+     * The array is shared and must not be modified.
+     */
+    @Nonnull
+    public static int[] getOreIds(@Nonnull ItemStack stack)
+    {
+        if(stack.isEmpty())
+        {
+            return NO_ORES;
+        }
+        
+        long key = ((long)Item.getIdFromItem(stack.getItem()) << 32) | (stack.getItemDamage() & 0xFFFFFFFFL);
+        int[] ids = oreIds.get(key);
+        
+        if(ids == null)
+        {
+            ids = lookupOreIds(stack);
+            oreIds.put(key, ids);
+        }
+        
+        return ids;
+    }
+    
+    private static int[] lookupOreIds(ItemStack stack)
+    {
+        int[] ids = OreDictionary.getOreIDs(stack);
+        int n = 0;
+        
+        for(int id : ids)
+        {
+            if(!BdsmConfig.isOreBlacklisted(OreDictionary.getOreName(id)))
+            {
+                ids[n++] = id;
+            }
+        }
+        
+        if(n == 0)
+        {
+            return NO_ORES;
+        }
+        
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+    
+    public static boolean sharesOre(@Nonnull int[] a, @Nonnull int[] b)
+    {
+        int i = 0;
+        int j = 0;
+        
+        while(i < a.length && j < b.length)
+        {
+            if(a[i] == b[j])
+            {
+                return true;
+            } else if(a[i] < b[j])
+            {
+                i++;
+            } else
+            {
+                j++;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Bumped every time the table is cleared. Holders of an ore ID array should look it up again when this changes.
+     */
+    public static int getGeneration()
+    {
+        return generation;
+    }
+    
+    public static void clear()
+    {
+        oreIds.clear();
+        generation++;
+    }
+    
+    @SubscribeEvent
+    public static void onOreRegister(OreDictionary.OreRegisterEvent event)
+    {
+        clear();
+    }
+}